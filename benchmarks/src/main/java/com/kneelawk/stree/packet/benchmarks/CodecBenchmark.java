@@ -0,0 +1,96 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kneelawk.stree.packet.CompactPacketIds;
+import com.kneelawk.stree.packet.Packet;
+import com.kneelawk.stree.packet.PacketIO;
+import com.kneelawk.stree.packet.streamProviders.ThroughOutputStreamProvider;
+
+/**
+ * Compares encoding and decoding a small, high-rate packet through its
+ * {@link PositionPacket.Codec} against going through a MapSTreeNode, both
+ * with compact packet IDs.
+ * 
+ * @author kneelawk
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+	@Param({ "tree", "codec" })
+	public String path;
+
+	private CompactPacketIds ids;
+	private Packet packet;
+	private byte[] encoded;
+
+	@Setup
+	public void setup() throws IOException {
+		Packet.registerInfoProvider(PositionPacket.Codec.INSTANCE);
+		ids = CompactPacketIds.fromRegisteredProviders();
+		if ("codec".equals(path))
+			ids.setPeerCodecBitmap(ids.getCodecBitmap());
+		packet = new PositionPacket(1, 12.5, 64, -3.25, "position");
+		encoded = encode();
+	}
+
+	@TearDown
+	public void tearDown() {
+		Packet.unregisterInfoProvider(PositionPacket.Codec.INSTANCE);
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return PacketIO.encodePacket(packet,
+				ThroughOutputStreamProvider.INSTANCE, ids);
+	}
+
+	@Benchmark
+	public Packet decode() throws IOException {
+		return ids.readPacket(new ByteArrayInputStream(encoded));
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kneelawk.stree.packet.ByteBufferPool;
+import com.kneelawk.stree.packet.CompactPacketIds;
+import com.kneelawk.stree.packet.Packet;
+import com.kneelawk.stree.packet.WireFormat;
+import com.kneelawk.stree.packet.streamProviders.ThroughOutputStreamProvider;
+
+/**
+ * Measures the send path's encoding step for a small codec packet, framed
+ * with compact IDs: copying into a fresh array against encoding into a
+ * pooled buffer that is released again, as the writer does once the packet
+ * is sent. Run it with <code>-prof gc</code>; gc.alloc.rate.norm should be
+ * close to 0 bytes per operation for the pooled path.
+ * 
+ * @author kneelawk
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeAllocationBenchmark {
+	@Param({ "copy", "pooled" })
+	public String path;
+
+	private WireFormat format;
+	private ByteBufferPool pool;
+	private Packet packet;
+
+	@Setup
+	public void setup() {
+		Packet.registerInfoProvider(PositionPacket.Codec.INSTANCE);
+		CompactPacketIds ids = CompactPacketIds.fromRegisteredProviders();
+		ids.setPeerCodecBitmap(ids.getCodecBitmap());
+		format = new WireFormat(true, ThroughOutputStreamProvider.INSTANCE,
+				ids);
+		pool = new ByteBufferPool();
+		packet = new PositionPacket(1, 12.5, 64, -3.25, "position");
+	}
+
+	@TearDown
+	public void tearDown() {
+		Packet.unregisterInfoProvider(PositionPacket.Codec.INSTANCE);
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		if ("copy".equals(path))
+			return format.encode(packet).remaining();
+		ByteBuffer data = format.encode(packet, pool);
+		int length = data.remaining();
+		pool.release(data);
+		return length;
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kneelawk.stree.core.MapSTreeNode;
+import com.kneelawk.stree.core.StringSTreeNode;
+import com.kneelawk.stree.packet.AdvancedPacket;
+import com.kneelawk.stree.packet.BundlePacket;
+import com.kneelawk.stree.packet.Packet;
+import com.kneelawk.stree.packet.infoProviders.AdvancedPacketInfoProvider;
+import com.kneelawk.stree.packet.infoProviders.PacketInfoProvider;
+
+/**
+ * Compares resolving packet info providers the old way, with a new provider
+ * for every call, against the shared per-class providers. Run with
+ * {@code -prof gc} to see the allocation rate of each.
+ * 
+ * @author kneelawk
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class InfoProviderBenchmark {
+	/**
+	 * The number of packets in the benchmarked bundle.
+	 */
+	public static final int BUNDLE_SIZE = 64;
+
+	private Packet packet;
+	private BundlePacket bundle;
+
+	/**
+	 * An AdvancedPacket that allocates a provider every time it is asked,
+	 * as every packet class used to.
+	 */
+	public static class AllocatingPacket extends AdvancedPacket {
+		public AllocatingPacket(MapSTreeNode data, String name) {
+			super(data, name);
+		}
+
+		@Override
+		public PacketInfoProvider getInfoProvider() {
+			return new AdvancedPacketInfoProvider();
+		}
+	}
+
+	@Setup
+	public void setup() {
+		MapSTreeNode data = new MapSTreeNode();
+		data.put("key", new StringSTreeNode("value"));
+		packet = new AllocatingPacket(data, "bench");
+		ArrayList<Packet> packets = new ArrayList<Packet>();
+		for (int i = 0; i < BUNDLE_SIZE; i++) {
+			packets.add(new AllocatingPacket(data, "bench" + i));
+		}
+		bundle = new BundlePacket(packets, "bench");
+	}
+
+	@Benchmark
+	public PacketInfoProvider lookupAllocating() {
+		return packet.getInfoProvider();
+	}
+
+	@Benchmark
+	public PacketInfoProvider lookupShared() {
+		return Packet.infoProviderOf(packet);
+	}
+
+	/**
+	 * Writes every packet of a bundle, asking each one for a new provider as
+	 * bundles used to.
+	 */
+	@Benchmark
+	public MapSTreeNode writeBundleAllocating() throws IOException {
+		MapSTreeNode root = new MapSTreeNode();
+		for (Packet p : bundle.packets) {
+			PacketInfoProvider info = p.getInfoProvider();
+			info.write(p, root);
+		}
+		return root;
+	}
+
+	@Benchmark
+	public MapSTreeNode writeBundleShared() throws IOException {
+		MapSTreeNode root = new MapSTreeNode();
+		for (Packet p : bundle.packets) {
+			PacketInfoProvider info = Packet.infoProviderOf(p);
+			info.write(p, root);
+		}
+		return root;
+	}
+}
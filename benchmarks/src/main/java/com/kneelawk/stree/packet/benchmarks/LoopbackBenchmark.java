@@ -0,0 +1,183 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kneelawk.stree.packet.BroadcastPolicy;
+import com.kneelawk.stree.packet.Packet;
+import com.kneelawk.stree.packet.PacketConnection;
+import com.kneelawk.stree.packet.PacketServerConnection;
+import com.kneelawk.stree.packet.listener.ConnectionListener;
+import com.kneelawk.stree.packet.listener.PacketListener;
+import com.kneelawk.stree.packet.nio.NioPacketServerConnection;
+
+/**
+ * Measures packets going over loopback between PacketConnections and a
+ * PacketServerConnection, on the blocking and the NIO engine, while a number
+ * of other clients are connected. Each benchmark thread owns one client that
+ * sends a packet and waits for the server to echo it back, giving round-trip
+ * throughput and latency percentiles. The broadcast benchmark measures the
+ * server queueing a packet for every connected client.
+ * 
+ * @author kneelawk
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+	@Param({ "blocking", "nio" })
+	public String engine;
+
+	@Param({ "0", "64", "512" })
+	public int idleClients;
+
+	@Param({ "64", "1024" })
+	public int size;
+
+	private PacketServerConnection server;
+	private InetSocketAddress address;
+	private ArrayList<PacketConnection> idle;
+	private Packet broadcast;
+
+	@Setup
+	public void startServer() throws IOException {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		if ("nio".equals(engine)) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.socket().bind(new InetSocketAddress(loopback, 0), 1024);
+			server = new NioPacketServerConnection(channel);
+		} else {
+			server = new PacketServerConnection(new ServerSocket(0, 1024,
+					loopback));
+			server.setSupportedFeatures(PacketConnection.FEATURE_FRAMING);
+		}
+		address = new InetSocketAddress(loopback, server.getSocket()
+				.getLocalPort());
+		server.addConnectionListener(new ConnectionListener() {
+			@Override
+			public void onReceiveConnection(Socket socket,
+					final PacketConnection connection) {
+				connection.addPacketListenerForNames(new PacketListener() {
+					@Override
+					public void onReceivePacket(String name, Packet packet) {
+						try {
+							connection.sendPacket(packet);
+						} catch (IOException e) {
+						}
+					}
+				}, "ping");
+			}
+		});
+		server.start();
+		idle = new ArrayList<PacketConnection>();
+		for (int i = 0; i < idleClients; i++) {
+			idle.add(connect(address));
+		}
+		broadcast = Payloads.packet("advanced", size);
+		broadcast.name = "broadcast";
+	}
+
+	@TearDown
+	public void stopServer() throws IOException {
+		for (PacketConnection conn : idle) {
+			conn.stop();
+		}
+		server.stop();
+	}
+
+	static PacketConnection connect(InetSocketAddress address)
+			throws IOException {
+		PacketConnection conn = new PacketConnection(new Socket(
+				address.getAddress(), address.getPort()));
+		conn.setRequestedFeatures(PacketConnection.FEATURE_FRAMING);
+		return conn.start();
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		PacketConnection conn;
+		ArrayBlockingQueue<Packet> echoes = new ArrayBlockingQueue<Packet>(1);
+		Packet ping;
+
+		@Setup
+		public void connect(LoopbackBenchmark bench) throws IOException {
+			conn = LoopbackBenchmark.connect(bench.address);
+			conn.addPacketListenerForNames(new PacketListener() {
+				@Override
+				public void onReceivePacket(String name, Packet packet) {
+					echoes.offer(packet);
+				}
+			}, "ping");
+			ping = Payloads.packet("advanced", bench.size);
+			ping.name = "ping";
+		}
+
+		@TearDown
+		public void disconnect() {
+			conn.stop();
+		}
+	}
+
+	@Benchmark
+	public Packet roundTrip(Client client) throws IOException,
+			InterruptedException {
+		client.conn.sendPacket(client.ping);
+		return client.echoes.take();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int broadcast() throws IOException {
+		return server.broadcastPacket(broadcast, BroadcastPolicy.SKIP);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kneelawk.stree.core.MapSTreeNode;
+import com.kneelawk.stree.packet.Packet;
+import com.kneelawk.stree.packet.PacketIO;
+import com.kneelawk.stree.packet.streamProviders.ThroughInputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.ThroughOutputStreamProvider;
+
+/**
+ * Measures turning Simple, Advanced and Bundle packets into STree nodes and
+ * bytes, and back, across payload sizes.
+ * 
+ * @author kneelawk
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketSerializationBenchmark {
+	@Param({ "simple", "advanced", "bundle" })
+	public String type;
+
+	@Param({ "64", "1024", "65536" })
+	public int size;
+
+	private Packet packet;
+	private MapSTreeNode tree;
+	private byte[] encoded;
+
+	@Setup
+	public void setUp() throws IOException {
+		packet = Payloads.packet(type, size);
+		tree = Packet.writePacket(packet);
+		encoded = PacketIO.encodePacket(packet,
+				ThroughOutputStreamProvider.INSTANCE);
+	}
+
+	@Benchmark
+	public MapSTreeNode writeTree() throws IOException {
+		return Packet.writePacket(packet);
+	}
+
+	@Benchmark
+	public Packet readTree() throws IOException {
+		return Packet.readPacket(tree);
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return PacketIO.encodePacket(packet,
+				ThroughOutputStreamProvider.INSTANCE);
+	}
+
+	@Benchmark
+	public Packet decode() throws IOException {
+		return PacketIO.decodePacket(encoded, 0, encoded.length,
+				ThroughInputStreamProvider.INSTANCE);
+	}
+}
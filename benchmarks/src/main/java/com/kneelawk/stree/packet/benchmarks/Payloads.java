@@ -0,0 +1,85 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.benchmarks;
+
+import java.util.ArrayList;
+
+import com.kneelawk.stree.core.MapSTreeNode;
+import com.kneelawk.stree.core.StringSTreeNode;
+import com.kneelawk.stree.packet.AdvancedPacket;
+import com.kneelawk.stree.packet.BundlePacket;
+import com.kneelawk.stree.packet.Packet;
+import com.kneelawk.stree.packet.SimplePacket;
+
+/**
+ * Builds packets of roughly a given encoded size for the benchmarks.
+ * 
+ * @author kneelawk
+ *
+ */
+public class Payloads {
+	/**
+	 * The approximate encoded size of one map entry.
+	 */
+	public static final int ENTRY_SIZE = 32;
+
+	/**
+	 * The number of packets in a bundle.
+	 */
+	public static final int BUNDLE_SIZE = 8;
+
+	public static MapSTreeNode map(int bytes) {
+		MapSTreeNode map = new MapSTreeNode();
+		int entries = Math.max(1, bytes / ENTRY_SIZE);
+		for (int i = 0; i < entries; i++) {
+			map.put("key" + i, new StringSTreeNode("value-" + i
+					+ "-abcdefghijklmnop"));
+		}
+		return map;
+	}
+
+	/**
+	 * @param type
+	 *            "simple", "advanced" or "bundle".
+	 * @param bytes
+	 *            the approximate payload size.
+	 * @return a new packet.
+	 */
+	public static Packet packet(String type, int bytes) {
+		if ("simple".equals(type))
+			return new SimplePacket(map(bytes), "bench");
+		if ("advanced".equals(type))
+			return new AdvancedPacket(map(bytes), "bench");
+		if ("bundle".equals(type)) {
+			ArrayList<Packet> packets = new ArrayList<Packet>();
+			for (int i = 0; i < BUNDLE_SIZE; i++) {
+				packets.add(new AdvancedPacket(map(bytes / BUNDLE_SIZE),
+						"bench" + i));
+			}
+			return new BundlePacket(packets, "bench");
+		}
+		throw new IllegalArgumentException("Unknown packet type: " + type);
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.benchmarks;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.kneelawk.stree.core.MapSTreeNode;
+import com.kneelawk.stree.core.StringSTreeNode;
+import com.kneelawk.stree.packet.Packet;
+import com.kneelawk.stree.packet.infoProviders.PacketCodec;
+import com.kneelawk.stree.packet.infoProviders.PacketInfoProvider;
+
+/**
+ * An example of a small, high-rate packet type with a {@link PacketCodec}.
+ * 
+ * @author kneelawk
+ *
+ */
+public class PositionPacket extends Packet {
+	public int entity;
+	public double x;
+	public double y;
+	public double z;
+
+	public PositionPacket() {
+	}
+
+	public PositionPacket(int entity, double x, double y, double z,
+			String name) {
+		super(name);
+		this.entity = entity;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	@Override
+	public PacketInfoProvider getInfoProvider() {
+		return Codec.INSTANCE;
+	}
+
+	public static class Codec implements PacketCodec {
+		public static final Codec INSTANCE = new Codec();
+
+		@Override
+		public void write(Packet packet, MapSTreeNode root) throws IOException {
+			PositionPacket position = (PositionPacket) packet;
+			root.put("entity", new StringSTreeNode(Integer
+					.toString(position.entity)));
+			root.put("x", new StringSTreeNode(Double.toString(position.x)));
+			root.put("y", new StringSTreeNode(Double.toString(position.y)));
+			root.put("z", new StringSTreeNode(Double.toString(position.z)));
+		}
+
+		@Override
+		public Packet read(MapSTreeNode root) throws IOException {
+			PositionPacket position = new PositionPacket();
+			position.entity = Integer.parseInt(root.getString("entity")
+					.getValue());
+			position.x = Double.parseDouble(root.getString("x").getValue());
+			position.y = Double.parseDouble(root.getString("y").getValue());
+			position.z = Double.parseDouble(root.getString("z").getValue());
+			return position;
+		}
+
+		@Override
+		public void encode(Packet packet, DataOutput out) throws IOException {
+			PositionPacket position = (PositionPacket) packet;
+			out.writeInt(position.entity);
+			out.writeDouble(position.x);
+			out.writeDouble(position.y);
+			out.writeDouble(position.z);
+		}
+
+		@Override
+		public Packet decode(DataInput in) throws IOException {
+			PositionPacket position = new PositionPacket();
+			position.entity = in.readInt();
+			position.x = in.readDouble();
+			position.y = in.readDouble();
+			position.z = in.readDouble();
+			return position;
+		}
+
+		@Override
+		public String getPacketID() {
+			return "positionPacket";
+		}
+	}
+}
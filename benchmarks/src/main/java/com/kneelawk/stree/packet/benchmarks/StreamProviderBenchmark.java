@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kneelawk.stree.packet.Packet;
+import com.kneelawk.stree.packet.PacketIO;
+import com.kneelawk.stree.packet.streamProviders.AdaptiveDeflateInputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.AdaptiveDeflateOutputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.ConnectionOutputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.DeflateInputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.DeflateOutputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.GZIPInputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.GZIPOutputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.InputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.OutputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.ThroughInputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.ThroughOutputStreamProvider;
+
+/**
+ * Measures encoding and decoding an AdvancedPacket through each stream
+ * provider. Per-packet providers encode every packet on its own; the
+ * connection-scoped deflate provider writes every packet into one long-lived
+ * stream and flushes it, the way a connection does. The encoded size is
+ * reported as an extra counter.
+ * 
+ * @author kneelawk
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamProviderBenchmark {
+	/**
+	 * The number of packets decoded from one connection-scoped stream before
+	 * it is restarted.
+	 */
+	private static final int STREAM_PACKETS = 1024;
+
+	@Param({ "through", "gzip", "adaptive", "deflate" })
+	public String provider;
+
+	@Param({ "64", "1024", "65536" })
+	public int size;
+
+	private Packet packet;
+	private OutputStreamProvider outProv;
+	private InputStreamProvider inProv;
+	private ByteArrayOutputStream sink;
+	private OutputStream stream;
+	private byte[] encoded;
+	private InputStream source;
+	private int sourcePackets;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class EncodedSize {
+		public long encodedBytes;
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		packet = Payloads.packet("advanced", size);
+		if ("through".equals(provider)) {
+			outProv = ThroughOutputStreamProvider.INSTANCE;
+			inProv = ThroughInputStreamProvider.INSTANCE;
+		} else if ("gzip".equals(provider)) {
+			outProv = new GZIPOutputStreamProvider();
+			inProv = new GZIPInputStreamProvider();
+		} else if ("adaptive".equals(provider)) {
+			outProv = new AdaptiveDeflateOutputStreamProvider();
+			inProv = new AdaptiveDeflateInputStreamProvider();
+		} else if ("deflate".equals(provider)) {
+			outProv = new DeflateOutputStreamProvider();
+			inProv = new DeflateInputStreamProvider();
+		} else {
+			throw new IllegalArgumentException("Unknown provider: "
+					+ provider);
+		}
+		sink = new ByteArrayOutputStream();
+		if (outProv instanceof ConnectionOutputStreamProvider) {
+			OutputStream out = outProv.getOutputStream(sink);
+			for (int i = 0; i < STREAM_PACKETS; i++) {
+				PacketIO.writePacket(out, packet);
+				out.flush();
+			}
+			out.close();
+			encoded = sink.toByteArray();
+			sink.reset();
+			stream = outProv.getOutputStream(sink);
+		} else {
+			encoded = PacketIO.encodePacket(packet, outProv);
+		}
+	}
+
+	@Benchmark
+	public int encode(EncodedSize encodedSize) throws IOException {
+		int length;
+		if (stream != null) {
+			sink.reset();
+			PacketIO.writePacket(stream, packet);
+			stream.flush();
+			length = sink.size();
+		} else {
+			length = PacketIO.encodePacket(packet, outProv).length;
+		}
+		encodedSize.encodedBytes += length;
+		return length;
+	}
+
+	@Benchmark
+	public Packet decode() throws IOException {
+		if (stream != null) {
+			if (source == null || sourcePackets == STREAM_PACKETS) {
+				source = inProv.getInputStream(new ByteArrayInputStream(
+						encoded));
+				sourcePackets = 0;
+			}
+			sourcePackets++;
+			return PacketIO.readPacket(source);
+		}
+		return PacketIO.decodePacket(encoded, 0, encoded.length, inProv);
+	}
+}
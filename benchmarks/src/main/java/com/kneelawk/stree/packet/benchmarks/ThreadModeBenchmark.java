@@ -0,0 +1,144 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.benchmarks;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kneelawk.stree.packet.PacketConnection;
+import com.kneelawk.stree.packet.PacketServerConnection;
+import com.kneelawk.stree.packet.PacketThreads;
+import com.kneelawk.stree.packet.listener.ConnectionListener;
+
+/**
+ * Compares how many idle connections a PacketServerConnection can hold, and
+ * what they cost, with platform threads and with virtual threads. Each
+ * invocation connects a batch of raw client sockets and times how long the
+ * server takes to accept and start all of them. The live platform thread count
+ * and the heap the batch added, measured from a collection run before the
+ * iteration so the timed part never includes one, are reported as extra
+ * counters.
+ * Virtual mode needs Java 21, and both ends of every connection live in this
+ * process, so the open file limit must allow twice the connection count.
+ * 
+ * @author kneelawk
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xss256k" })
+@State(Scope.Benchmark)
+public class ThreadModeBenchmark {
+	@Param({ "platform", "virtual" })
+	public String mode;
+
+	@Param({ "1000", "5000" })
+	public int connections;
+
+	private PacketServerConnection server;
+	private ArrayList<Socket> clients;
+	private CountDownLatch accepted;
+	private long baselineHeap;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Footprint {
+		public long platformThreads;
+		public long heapUsedBytes;
+	}
+
+	@Setup(Level.Iteration)
+	public void collectGarbage() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		memory.gc();
+		baselineHeap = memory.getHeapMemoryUsage().getUsed();
+	}
+
+	@Setup(Level.Invocation)
+	public void setUp() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0, connections,
+				InetAddress.getLoopbackAddress());
+		server = new PacketServerConnection(serverSocket);
+		if ("virtual".equals(mode))
+			server.setThreadFactory(PacketThreads.virtualThreadFactory());
+		accepted = new CountDownLatch(connections);
+		server.addConnectionListener(new ConnectionListener() {
+			@Override
+			public void onReceiveConnection(Socket socket,
+					PacketConnection connection) {
+				accepted.countDown();
+			}
+		});
+		clients = new ArrayList<Socket>(connections);
+		server.start();
+	}
+
+	@Benchmark
+	public void acceptIdleConnections(Footprint footprint)
+			throws IOException, InterruptedException {
+		int port = server.getSocket().getLocalPort();
+		for (int i = 0; i < connections; i++) {
+			clients.add(new Socket(InetAddress.getLoopbackAddress(), port));
+		}
+		accepted.await();
+
+		footprint.heapUsedBytes = ManagementFactory.getMemoryMXBean()
+				.getHeapMemoryUsage().getUsed() - baselineHeap;
+		footprint.platformThreads = ManagementFactory.getThreadMXBean()
+				.getThreadCount();
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDown() throws IOException {
+		for (Socket client : clients) {
+			client.close();
+		}
+		server.stop();
+	}
+}
@@ -60,7 +60,7 @@ public class AdvancedPacket extends Packet {
 
 	@Override
 	public PacketInfoProvider getInfoProvider() {
-		return new AdvancedPacketInfoProvider();
+		return AdvancedPacketInfoProvider.INSTANCE;
 	}
 	
 	public String toString(){
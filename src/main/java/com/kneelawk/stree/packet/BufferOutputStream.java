@@ -0,0 +1,177 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A growable output stream writing into buffers from a
+ * {@link ByteBufferPool}. Room for a frame header can be reserved in front of
+ * the data, so a packet can be encoded and framed without copying it. Each
+ * thread reuses one stream through {@link #get()}, so encoding a packet into
+ * a pooled buffer allocates nothing once the pool is warm.
+ * 
+ * @author kneelawk
+ *
+ */
+public class BufferOutputStream extends OutputStream {
+	/**
+	 * The most bytes a varint frame header takes.
+	 */
+	public static final int MAX_HEADER_SIZE = 5;
+
+	/**
+	 * The size of the buffer each encode starts with.
+	 */
+	public static final int INITIAL_SIZE = 256;
+
+	private static final ThreadLocal<BufferOutputStream> STREAMS = new ThreadLocal<BufferOutputStream>() {
+		@Override
+		protected BufferOutputStream initialValue() {
+			return new BufferOutputStream();
+		}
+	};
+
+	protected ByteBufferPool pool;
+	protected ByteBuffer buffer;
+	protected int start;
+	protected DataOutputStream dataOutput;
+
+	public BufferOutputStream() {
+		dataOutput = new DataOutputStream(this);
+	}
+
+	/**
+	 * @return this thread's stream, or a new one if this thread's stream is
+	 *         in the middle of an encode.
+	 */
+	public static BufferOutputStream get() {
+		BufferOutputStream stream = STREAMS.get();
+		return stream.buffer == null ? stream : new BufferOutputStream();
+	}
+
+	/**
+	 * Starts writing into a fresh buffer from pool.
+	 * 
+	 * @param pool
+	 *            the pool to take buffers from.
+	 * @param reserve
+	 *            the number of bytes to leave free in front of the data.
+	 */
+	public void begin(ByteBufferPool pool, int reserve) {
+		this.pool = pool;
+		buffer = pool.acquire(Math.max(INITIAL_SIZE, reserve));
+		buffer.limit(buffer.capacity());
+		buffer.position(reserve);
+		start = reserve;
+	}
+
+	/**
+	 * @return a DataOutput writing to this stream, for the duration of the
+	 *         current encode.
+	 */
+	public DataOutputStream getDataOutput() {
+		return dataOutput;
+	}
+
+	/**
+	 * @return the number of bytes written since {@link #begin}.
+	 */
+	public int size() {
+		return buffer.position() - start;
+	}
+
+	@Override
+	public void write(int b) {
+		ensureRoom(1);
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureRoom(len);
+		buffer.put(b, off, len);
+	}
+
+	protected void ensureRoom(int bytes) {
+		if (buffer.remaining() >= bytes)
+			return;
+		int needed = buffer.position() + bytes;
+		if (needed < 0)
+			throw new OutOfMemoryError("Encoded packet too large");
+		ByteBuffer bigger = pool.acquire(Math.max(needed,
+				buffer.capacity() * 2));
+		bigger.limit(bigger.capacity());
+		buffer.flip();
+		bigger.put(buffer);
+		pool.release(buffer);
+		buffer = bigger;
+	}
+
+	/**
+	 * Ends the current encode, handing the buffer over to the caller. It
+	 * should be returned to the pool once it is no longer needed.
+	 * 
+	 * @param framed
+	 *            whether to write a frame header into the reserved space. At
+	 *            least {@link #MAX_HEADER_SIZE} bytes must have been reserved.
+	 * @return a buffer positioned at the frame header, or the data if not
+	 *         framed, and limited to the end of the data.
+	 */
+	public ByteBuffer finish(boolean framed) {
+		ByteBuffer data = buffer;
+		buffer = null;
+		int end = data.position();
+		int begin = start;
+		if (framed) {
+			int length = end - start;
+			begin = start - PacketIO.varIntSize(length);
+			data.position(begin);
+			PacketIO.writeVarInt(data, length);
+		}
+		data.limit(end);
+		data.position(begin);
+		return data;
+	}
+
+	/**
+	 * Abandons the current encode, returning its buffer to the pool.
+	 */
+	public void discard() {
+		if (buffer != null) {
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Does nothing, so providers can close the streams they wrap this one in.
+	 */
+	@Override
+	public void close() {
+	}
+}
@@ -61,7 +61,7 @@ public class BundlePacket extends Packet {
 
 	@Override
 	public PacketInfoProvider getInfoProvider() {
-		return new BundlePacketInfoProvider();
+		return BundlePacketInfoProvider.INSTANCE;
 	}
 
 	public String toString() {
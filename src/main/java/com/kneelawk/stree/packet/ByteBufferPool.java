@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A thread-safe pool of heap ByteBuffers in power-of-two size classes.
+ * Buffers larger than the biggest size class are allocated on demand and
+ * never retained. Free buffers are kept in fixed-size queues, so acquiring
+ * and releasing pooled buffers allocates nothing.
+ * 
+ * @author kneelawk
+ *
+ */
+public class ByteBufferPool {
+	/**
+	 * The pool shared by connections that are not given their own.
+	 */
+	public static final ByteBufferPool DEFAULT = new ByteBufferPool();
+
+	public static final int MIN_BUFFER_SIZE = 256;
+	public static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+	protected ArrayBlockingQueue<ByteBuffer>[] free;
+	protected int maxPerClass;
+
+	public ByteBufferPool() {
+		this(64);
+	}
+
+	/**
+	 * @param maxPerClass
+	 *            the most free buffers kept for each size class.
+	 */
+	@SuppressWarnings("unchecked")
+	public ByteBufferPool(int maxPerClass) {
+		this.maxPerClass = maxPerClass;
+		int classes = classOf(MAX_POOLED_BUFFER_SIZE) + 1;
+		free = new ArrayBlockingQueue[classes];
+		for (int i = 0; i < classes; i++) {
+			free[i] = new ArrayBlockingQueue<ByteBuffer>(Math.max(1,
+					maxPerClass));
+		}
+	}
+
+	/**
+	 * Gets a cleared buffer with at least size bytes of capacity and its limit
+	 * set to size.
+	 * 
+	 * @param size
+	 *            the number of bytes needed.
+	 * @return a buffer from the pool, or a new one if none is free.
+	 */
+	public ByteBuffer acquire(int size) {
+		if (size > MAX_POOLED_BUFFER_SIZE)
+			return ByteBuffer.allocate(size);
+		int sizeClass = classOf(size);
+		ByteBuffer buffer = free[sizeClass].poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(MIN_BUFFER_SIZE << sizeClass);
+		} else {
+			buffer.clear();
+		}
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #acquire(int)} to the pool. The
+	 * buffer must not be used afterwards. Buffers that can't have come from
+	 * the pool, such as direct or mapped ones, are ignored.
+	 * 
+	 * @param buffer
+	 *            the buffer to return.
+	 */
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (!buffer.hasArray() || capacity > MAX_POOLED_BUFFER_SIZE
+				|| capacity < MIN_BUFFER_SIZE
+				|| Integer.bitCount(capacity) != 1)
+			return;
+		free[classOf(capacity)].offer(buffer);
+	}
+
+	private static int classOf(int size) {
+		if (size <= MIN_BUFFER_SIZE)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1)
+				- Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+	}
+}
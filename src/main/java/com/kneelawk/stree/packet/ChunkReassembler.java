@@ -0,0 +1,465 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Puts chunked packets back together on the receiving end of a connection.
+ * Chunks are collected in pooled heap buffers until those would hold more
+ * than the memory limit. A transfer that would go over it is then either
+ * spooled to a temporary file, which is memory-mapped once the transfer is
+ * complete, or dropped. Spool files are limited too, and a transfer that
+ * would go over the spool limit is dropped.
+ * 
+ * <p>
+ * A spool file is deleted as soon as it has been mapped. Platforms that
+ * won't delete a mapped file get another try each time a spool file is
+ * closed and when the reassembler is cleared, so mappings should be given
+ * back with {@link #unmap(ByteBuffer)} once they've been decoded.
+ * </p>
+ * 
+ * <p>
+ * A dropped transfer is remembered until its last chunk arrives, so the rest
+ * of its chunks can be skipped. Every transfer counts against the transfer
+ * limit until then, and a chunk starting a transfer beyond that limit is an
+ * error the connection should be closed over. Only the connection's reading
+ * thread may use a reassembler.
+ * </p>
+ * 
+ * @author kneelawk
+ *
+ */
+public class ChunkReassembler {
+	/**
+	 * The default limit on the heap held by packets being reassembled, enough
+	 * for one packet of the largest frame length.
+	 */
+	public static final long DEFAULT_MEMORY_LIMIT = PacketIO.MAX_FRAME_LENGTH;
+
+	/**
+	 * The default limit on the size of all spool files at once.
+	 */
+	public static final long DEFAULT_SPOOL_LIMIT =
+			4L * PacketIO.MAX_FRAME_LENGTH;
+
+	/**
+	 * The default limit on the number of packets being reassembled at once.
+	 */
+	public static final int DEFAULT_TRANSFER_LIMIT = 64;
+
+	protected ByteBufferPool pool;
+	protected long memoryLimit = DEFAULT_MEMORY_LIMIT;
+	protected long spoolLimit = DEFAULT_SPOOL_LIMIT;
+	protected int transferLimit = DEFAULT_TRANSFER_LIMIT;
+	protected File spoolDirectory;
+	protected volatile long heldBytes = 0;
+	protected volatile long spooledBytes = 0;
+	protected HashMap<Integer, Transfer> transfers = new HashMap<Integer, Transfer>();
+	/**
+	 * Spool files that couldn't be deleted yet.
+	 */
+	protected ArrayList<File> undeleted = new ArrayList<File>();
+
+	/**
+	 * @param pool
+	 *            the pool reassembly buffers come from.
+	 */
+	public ChunkReassembler(ByteBufferPool pool) {
+		this.pool = pool;
+	}
+
+	public void setPool(ByteBufferPool pool) {
+		this.pool = pool;
+	}
+
+	public long getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	/**
+	 * @param memoryLimit
+	 *            the most heap, in bytes, held by all packets being
+	 *            reassembled at once.
+	 */
+	public void setMemoryLimit(long memoryLimit) {
+		this.memoryLimit = memoryLimit;
+	}
+
+	public long getSpoolLimit() {
+		return spoolLimit;
+	}
+
+	/**
+	 * @param spoolLimit
+	 *            the most bytes held in spool files by all packets being
+	 *            reassembled at once.
+	 */
+	public void setSpoolLimit(long spoolLimit) {
+		this.spoolLimit = spoolLimit;
+	}
+
+	public int getTransferLimit() {
+		return transferLimit;
+	}
+
+	/**
+	 * @param transferLimit
+	 *            the most packets, including dropped ones, that may be
+	 *            reassembled at once.
+	 */
+	public void setTransferLimit(int transferLimit) {
+		this.transferLimit = transferLimit;
+	}
+
+	public File getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	/**
+	 * @param spoolDirectory
+	 *            the directory to spool transfers over the memory limit to, or
+	 *            null to drop them instead.
+	 */
+	public void setSpoolDirectory(File spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	/**
+	 * @return the heap, in bytes, held by packets being reassembled.
+	 */
+	public long getHeldBytes() {
+		return heldBytes;
+	}
+
+	/**
+	 * @return the bytes held in spool files by packets being reassembled.
+	 */
+	public long getSpooledBytes() {
+		return spooledBytes;
+	}
+
+	/**
+	 * @return the number of packets being reassembled.
+	 */
+	public int getTransferCount() {
+		return transfers.size();
+	}
+
+	/**
+	 * Gets the buffer the next chunk of a transfer is to be copied into.
+	 * 
+	 * @param transferId
+	 *            the ID the sender gave the chunked packet.
+	 * @param length
+	 *            the length of the chunk.
+	 * @param last
+	 *            whether it is the packet's last chunk.
+	 * @return a heap buffer with room for length bytes at its position, or
+	 *         null if the transfer has been dropped and the chunk should be
+	 *         skipped.
+	 * @throws IOException
+	 *             if the chunk starts a transfer beyond the transfer limit.
+	 */
+	public ByteBuffer startChunk(int transferId, int length, boolean last)
+			throws IOException {
+		Transfer transfer = transfers.get(transferId);
+		if (transfer == null) {
+			if (transfers.size() >= transferLimit)
+				throw new IOException(
+						"Too many chunked packets being reassembled");
+			transfer = new Transfer();
+			transfers.put(transferId, transfer);
+		}
+		if (!transfer.dropped
+				&& transfer.size() + length > PacketIO.MAX_FRAME_LENGTH)
+			drop(transfer);
+		if (!transfer.dropped && transfer.channel == null
+				&& !reserve(transfer, length)) {
+			try {
+				if (spoolDirectory == null)
+					throw new IOException("Reassembly memory limit reached");
+				if (spooledBytes + transfer.size() + length > spoolLimit)
+					throw new IOException("Spool limit reached");
+				spool(transfer);
+			} catch (IOException e) {
+				drop(transfer);
+			}
+		} else if (transfer.channel != null
+				&& spooledBytes + length > spoolLimit) {
+			drop(transfer);
+		}
+		if (transfer.dropped) {
+			if (last)
+				transfers.remove(transferId);
+			return null;
+		}
+		if (transfer.channel != null)
+			transfer.chunk = pool.acquire(length);
+		return transfer.chunk != null ? transfer.chunk : transfer.buffer;
+	}
+
+	/**
+	 * Finishes a chunk that has been copied into the buffer returned by
+	 * {@link #startChunk(int, int, boolean)}.
+	 * 
+	 * @param transferId
+	 *            the ID the sender gave the chunked packet.
+	 * @param last
+	 *            whether it was the packet's last chunk.
+	 * @return the reassembled packet if this was its last chunk, or null. The
+	 *         packet is a pooled heap buffer, or a read-only mapping of its
+	 *         spool file.
+	 * @throws IOException
+	 *             if the chunk could not be spooled.
+	 */
+	public ByteBuffer endChunk(int transferId, boolean last)
+			throws IOException {
+		Transfer transfer = transfers.get(transferId);
+		if (transfer.chunk != null) {
+			ByteBuffer chunk = transfer.chunk;
+			transfer.chunk = null;
+			chunk.flip();
+			try {
+				while (chunk.hasRemaining())
+					spooled(transfer, transfer.channel.write(chunk,
+							transfer.spooled));
+			} catch (IOException e) {
+				transfers.remove(transferId);
+				drop(transfer);
+				throw e;
+			} finally {
+				pool.release(chunk);
+			}
+		}
+		if (!last)
+			return null;
+		transfers.remove(transferId);
+		if (transfer.channel == null) {
+			ByteBuffer frame = transfer.buffer;
+			heldBytes -= frame.capacity();
+			frame.flip();
+			return frame;
+		}
+		try {
+			return transfer.channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					transfer.spooled);
+		} finally {
+			closeSpool(transfer);
+		}
+	}
+
+	/**
+	 * Drops every packet still being reassembled, e.g. once the connection
+	 * has closed. Spool files that still can't be deleted are left to be
+	 * deleted when the JVM exits.
+	 */
+	public void clear() {
+		for (Transfer transfer : transfers.values()) {
+			drop(transfer);
+		}
+		transfers.clear();
+		retryDeletes();
+		for (File file : undeleted) {
+			file.deleteOnExit();
+		}
+		undeleted.clear();
+	}
+
+	/**
+	 * Releases a mapping returned by {@link #endChunk(int, boolean)} right
+	 * away instead of when it is garbage collected, so its spool file can be
+	 * deleted on platforms that won't delete a mapped file. The buffer must
+	 * not be used afterwards. Other buffers are left alone, as are mappings
+	 * if the JVM doesn't allow releasing them.
+	 * 
+	 * @param buffer
+	 *            the buffer that is no longer needed.
+	 */
+	public static void unmap(ByteBuffer buffer) {
+		if (!(buffer instanceof MappedByteBuffer))
+			return;
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null)
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+		} catch (Exception e) {
+			// later JVMs hide the cleaner but let Unsafe run it
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+						.invoke(theUnsafe.get(null), buffer);
+			} catch (Exception e1) {
+			}
+		}
+	}
+
+	/**
+	 * Makes room in a transfer's heap buffer for another chunk, unless that
+	 * would go over the memory limit.
+	 * 
+	 * @return whether there is room.
+	 */
+	protected boolean reserve(Transfer transfer, int length) {
+		ByteBuffer buffer = transfer.buffer;
+		int received = buffer != null ? buffer.position() : 0;
+		if (buffer != null && buffer.capacity() - received >= length)
+			return true;
+		int size = Math.max(received + length, received * 2);
+		int held = buffer != null ? buffer.capacity() : 0;
+		if (heldBytes - held + size > memoryLimit) {
+			size = received + length;
+			if (heldBytes - held + size > memoryLimit)
+				return false;
+		}
+		ByteBuffer bigger = pool.acquire(size);
+		bigger.limit(bigger.capacity());
+		if (buffer != null) {
+			buffer.flip();
+			bigger.put(buffer);
+			pool.release(buffer);
+		}
+		heldBytes += bigger.capacity() - held;
+		transfer.buffer = bigger;
+		return true;
+	}
+
+	/**
+	 * Moves a transfer's chunks out of the heap into a temporary file.
+	 */
+	protected void spool(Transfer transfer) throws IOException {
+		transfer.file = File.createTempFile("stree-", ".chunks",
+				spoolDirectory);
+		transfer.channel = new RandomAccessFile(transfer.file, "rw")
+				.getChannel();
+		ByteBuffer buffer = transfer.buffer;
+		if (buffer != null) {
+			transfer.buffer = null;
+			heldBytes -= buffer.capacity();
+			buffer.flip();
+			try {
+				while (buffer.hasRemaining())
+					spooled(transfer, transfer.channel.write(buffer,
+							transfer.spooled));
+			} finally {
+				pool.release(buffer);
+			}
+		}
+	}
+
+	private void spooled(Transfer transfer, int bytes) {
+		transfer.spooled += bytes;
+		spooledBytes += bytes;
+	}
+
+	/**
+	 * Frees everything a transfer holds and skips its remaining chunks.
+	 */
+	protected void drop(Transfer transfer) {
+		transfer.dropped = true;
+		if (transfer.buffer != null) {
+			heldBytes -= transfer.buffer.capacity();
+			pool.release(transfer.buffer);
+			transfer.buffer = null;
+		}
+		if (transfer.chunk != null) {
+			pool.release(transfer.chunk);
+			transfer.chunk = null;
+		}
+		closeSpool(transfer);
+	}
+
+	/**
+	 * Closes and deletes a transfer's spool file. A mapping of it stays valid,
+	 * and if the file can't be deleted while it is mapped it is tried again
+	 * later.
+	 */
+	protected void closeSpool(Transfer transfer) {
+		if (transfer.channel == null)
+			return;
+		try {
+			transfer.channel.close();
+		} catch (IOException e) {
+		}
+		retryDeletes();
+		if (!transfer.file.delete() && transfer.file.exists())
+			undeleted.add(transfer.file);
+		spooledBytes -= transfer.spooled;
+		transfer.channel = null;
+		transfer.file = null;
+	}
+
+	/**
+	 * Tries again to delete the spool files that couldn't be deleted before.
+	 */
+	protected void retryDeletes() {
+		Iterator<File> it = undeleted.iterator();
+		while (it.hasNext()) {
+			File file = it.next();
+			if (file.delete() || !file.exists())
+				it.remove();
+		}
+	}
+
+	/**
+	 * A packet being reassembled.
+	 * 
+	 * @author kneelawk
+	 *
+	 */
+	protected static class Transfer {
+		/**
+		 * The chunks received so far, while they're kept on the heap.
+		 */
+		public ByteBuffer buffer;
+		/**
+		 * The chunk being received, while the transfer is spooled.
+		 */
+		public ByteBuffer chunk;
+		public File file;
+		public FileChannel channel;
+		public long spooled;
+		public boolean dropped;
+
+		public long size() {
+			return channel != null ? spooled : buffer != null ? buffer
+					.position() : 0;
+		}
+	}
+}
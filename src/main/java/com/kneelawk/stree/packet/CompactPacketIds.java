@@ -0,0 +1,579 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.kneelawk.stree.core.MapSTreeNode;
+import com.kneelawk.stree.core.STreeIO;
+import com.kneelawk.stree.packet.infoProviders.BundlePacketInfoProvider;
+import com.kneelawk.stree.packet.infoProviders.LazyPacketInfoProvider;
+import com.kneelawk.stree.packet.infoProviders.PacketCodec;
+import com.kneelawk.stree.packet.infoProviders.PacketInfoProvider;
+import com.kneelawk.stree.packet.listener.PacketListener;
+
+/**
+ * A table of small integer IDs for packet info providers, agreed on by both
+ * ends of a connection in the feature handshake. With it, packets are written
+ * as a varint ID, the packet name and the provider's data, instead of a tree
+ * carrying the "packetId" and "packetName" strings, and received packets find
+ * their provider with an array index.
+ * 
+ * <p>
+ * On the wire, the ID is shifted left by one, with the low bit set if the
+ * data was written by a {@link PacketCodec} rather than as a tree. ID 0 is
+ * followed by the provider ID as a string, for providers registered after the
+ * table was made; ID n refers to entry n - 1. The table also records which
+ * entries the peer has codecs for, and codecs are only used for those.
+ * </p>
+ * 
+ * <p>
+ * Bundles sent with the codec bit share one dictionary of packet names
+ * between all their children, and can be read one child at a time with
+ * {@link #readPacket(InputStream, PacketListener)}.
+ * </p>
+ * 
+ * @author kneelawk
+ *
+ */
+public class CompactPacketIds {
+	/**
+	 * The most entries a table received in a handshake may have.
+	 */
+	public static final int MAX_IDS = 4096;
+
+	/**
+	 * The longest provider ID, in bytes, a table received in a handshake may
+	 * have.
+	 */
+	public static final int MAX_ID_LENGTH = 255;
+
+	/**
+	 * The most bytes a table received in a handshake may take, counting its
+	 * codec bitmap.
+	 */
+	public static final int MAX_TABLE_SIZE = 64 * 1024;
+
+	/**
+	 * The deepest compact bundles may be nested in a received packet.
+	 */
+	public static final int MAX_BUNDLE_DEPTH = 16;
+
+	protected String[] ids;
+	protected volatile Resolved resolved;
+	protected HashMap<String, Integer> indices;
+	protected byte[] peerCodecs;
+	protected PacketInfoProvider[] advertised;
+	protected int hash;
+
+	/**
+	 * @param ids
+	 *            the provider IDs in table order.
+	 */
+	public CompactPacketIds(String[] ids) {
+		this.ids = ids.clone();
+		indices = new HashMap<String, Integer>();
+		for (int i = 0; i < ids.length; i++) {
+			indices.put(ids[i], i + 1);
+		}
+		peerCodecs = new byte[bitmapSize()];
+		advertised = new PacketInfoProvider[ids.length];
+		hash = Arrays.hashCode(this.ids);
+		resolved = resolve(Packet.registry.snapshot());
+	}
+
+	private Resolved resolve(PacketRegistry.Snapshot snapshot) {
+		PacketInfoProvider[] providers = new PacketInfoProvider[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			providers[i] = snapshot.get(ids[i]);
+		}
+		return new Resolved(snapshot, providers);
+	}
+
+	/**
+	 * @return a table of every provider registered right now.
+	 */
+	public static CompactPacketIds fromRegisteredProviders() {
+		return new CompactPacketIds(Packet.registry.snapshot().getIds());
+	}
+
+	/**
+	 * Writes this table for the peer, as a varint count followed by the
+	 * provider IDs and {@link #getCodecBitmap()}.
+	 * 
+	 * @param os
+	 *            the stream to write to.
+	 * @throws IOException
+	 */
+	public void writeTable(OutputStream os) throws IOException {
+		PacketIO.writeVarInt(os, ids.length);
+		for (String id : ids) {
+			PacketIO.writeString(os, id);
+		}
+		os.write(getCodecBitmap());
+	}
+
+	/**
+	 * Reads a table written by {@link #writeTable(OutputStream)}, with the
+	 * writer's codecs as the peer's.
+	 * 
+	 * @param is
+	 *            the stream to read from.
+	 * @return the table read.
+	 * @throws IOException
+	 *             if the table is malformed or goes over
+	 *             {@link #MAX_ID_LENGTH} or {@link #MAX_TABLE_SIZE}.
+	 */
+	public static CompactPacketIds readTable(InputStream is)
+			throws IOException {
+		int count = checkCount(PacketIO.readVarInt(is));
+		String[] ids = new String[count];
+		int size = PacketIO.varIntSize(count) + (count + 7) / 8;
+		for (int i = 0; i < ids.length; i++) {
+			int length = PacketIO.readVarInt(is);
+			size = checkTableSize(size + PacketIO.varIntSize(length)
+					+ checkIdLength(length));
+			byte[] bytes = new byte[length];
+			PacketIO.readFully(is, bytes, 0, length);
+			ids[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		CompactPacketIds table = new CompactPacketIds(ids);
+		PacketIO.readFully(is, table.peerCodecs, 0, table.peerCodecs.length);
+		return table;
+	}
+
+	/**
+	 * Reads a table written by {@link #writeTable(OutputStream)} from buffer
+	 * without blocking. If the buffer does not yet hold the whole table, null
+	 * is returned and the buffer's position is left unchanged.
+	 * 
+	 * @param buffer
+	 *            the buffer to read from.
+	 * @return the table read, or null if more bytes are needed.
+	 * @throws IOException
+	 *             if the table is malformed or goes over
+	 *             {@link #MAX_ID_LENGTH} or {@link #MAX_TABLE_SIZE}.
+	 */
+	public static CompactPacketIds readTable(ByteBuffer buffer)
+			throws IOException {
+		int start = buffer.position();
+		int count = PacketIO.readVarInt(buffer);
+		if (count < 0)
+			return null;
+		String[] ids = new String[checkCount(count)];
+		int size = PacketIO.varIntSize(count) + (count + 7) / 8;
+		for (int i = 0; i < ids.length; i++) {
+			int length = PacketIO.readVarInt(buffer);
+			if (length >= 0)
+				size = checkTableSize(size + PacketIO.varIntSize(length)
+						+ checkIdLength(length));
+			if (length < 0 || buffer.remaining() < length) {
+				buffer.position(start);
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			ids[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		CompactPacketIds table = new CompactPacketIds(ids);
+		if (buffer.remaining() < table.peerCodecs.length) {
+			buffer.position(start);
+			return null;
+		}
+		buffer.get(table.peerCodecs);
+		return table;
+	}
+
+	public static int checkCount(int count) throws IOException {
+		if (count < 0 || count > MAX_IDS)
+			throw new IOException("Invalid packet ID count: " + count);
+		return count;
+	}
+
+	private static int checkIdLength(int length) throws IOException {
+		if (length < 0 || length > MAX_ID_LENGTH)
+			throw new IOException("Invalid packet ID length: " + length);
+		return length;
+	}
+
+	private static int checkTableSize(int size) throws IOException {
+		if (size > MAX_TABLE_SIZE)
+			throw new IOException("Packet ID table too large");
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes in a codec bitmap for this table.
+	 */
+	public int bitmapSize() {
+		return (ids.length + 7) / 8;
+	}
+
+	/**
+	 * Gets a bitmap of the entries this side has a {@link PacketCodec} for,
+	 * one bit per entry. Bundles count as having a codec, the compact bundle
+	 * encoding. The codecs in the bitmap are remembered, so packets the peer
+	 * encodes with them can still be read if they are unregistered later.
+	 * 
+	 * @return the bitmap.
+	 */
+	public byte[] getCodecBitmap() {
+		byte[] bitmap = new byte[bitmapSize()];
+		PacketInfoProvider[] providers = resolved.providers;
+		for (int i = 0; i < providers.length; i++) {
+			if (providers[i] instanceof PacketCodec
+					|| providers[i] instanceof BundlePacketInfoProvider) {
+				bitmap[i >> 3] |= 1 << (i & 7);
+				advertised[i] = providers[i];
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Sets which entries the peer has codecs for, from the bitmap it sent.
+	 * Must be called before the table is used.
+	 * 
+	 * @param bitmap
+	 *            the peer's {@link #getCodecBitmap()}.
+	 */
+	public void setPeerCodecBitmap(byte[] bitmap) {
+		peerCodecs = Arrays.copyOf(bitmap, bitmapSize());
+	}
+
+	/**
+	 * @param index
+	 *            a compact ID, starting at 1.
+	 * @return whether the peer has a codec for that ID.
+	 */
+	public boolean peerHasCodec(int index) {
+		int i = index - 1;
+		return i >= 0 && i < ids.length
+				&& (peerCodecs[i >> 3] & (1 << (i & 7))) != 0;
+	}
+
+	/**
+	 * Gets the compact ID of a provider.
+	 * 
+	 * @param id
+	 *            the provider's ID.
+	 * @return the compact ID, or 0 if the provider isn't in this table.
+	 */
+	public int indexOf(String id) {
+		Integer index = indices.get(id);
+		return index == null ? 0 : index;
+	}
+
+	/**
+	 * @param index
+	 *            the compact ID, starting at 1.
+	 * @return the provider ID with that compact ID, or null if there's none.
+	 */
+	public String getId(int index) {
+		if (index < 1 || index > ids.length)
+			return null;
+		return ids[index - 1];
+	}
+
+	/**
+	 * Gets the provider with a compact ID. Providers are looked up again
+	 * whenever {@link Packet#registry} has changed, so unregistered providers
+	 * are not kept around.
+	 * 
+	 * @param index
+	 *            the compact ID, starting at 1.
+	 * @return the provider, or null if there's none with that ID on this side.
+	 */
+	public PacketInfoProvider getProvider(int index) {
+		if (index < 1 || index > ids.length)
+			return null;
+		Resolved resolved = this.resolved;
+		PacketRegistry.Snapshot snapshot = Packet.registry.snapshot();
+		if (resolved.snapshot != snapshot)
+			this.resolved = resolved = resolve(snapshot);
+		return resolved.providers[index - 1];
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * Writes packet in the compact encoding, through its provider's codec if
+	 * both ends have one.
+	 * 
+	 * @param os
+	 *            the stream to write to.
+	 * @param packet
+	 *            the Packet to write.
+	 * @throws IOException
+	 */
+	public void writePacket(OutputStream os, Packet packet) throws IOException {
+		if (packet == null)
+			throw new NullPointerException("Packet cannot be null!");
+		writeBody(os, packet, true);
+	}
+
+	/**
+	 * Writes a packet's ID, its name if withName is set, and its contents.
+	 */
+	private void writeBody(OutputStream os, Packet packet, boolean withName)
+			throws IOException {
+		PacketInfoProvider info = Packet.infoProviderOf(packet);
+		int index = indexOf(info.getPacketID());
+		boolean codec = (info instanceof PacketCodec || info instanceof BundlePacketInfoProvider)
+				&& peerHasCodec(index);
+		PacketIO.writeVarInt(os, index << 1 | (codec ? 1 : 0));
+		if (index == 0)
+			PacketIO.writeString(os, info.getPacketID());
+		if (withName)
+			PacketIO.writeString(os, packet.name);
+		if (codec && info instanceof BundlePacketInfoProvider) {
+			writeBundle(os, (BundlePacket) packet);
+		} else if (codec) {
+			DataOutput out = os instanceof DataOutput ? (DataOutput) os
+					: new DataOutputStream(os);
+			((PacketCodec) info).encode(packet, out);
+		} else {
+			MapSTreeNode root = new MapSTreeNode();
+			info.write(packet, root);
+			STreeIO.writeSTreeNodeToStream(os, root);
+		}
+	}
+
+	/**
+	 * Writes a bundle's children as a varint count, a dictionary of their
+	 * names, and then each child as a reference into the dictionary followed
+	 * by its compact encoding.
+	 */
+	private void writeBundle(OutputStream os, BundlePacket bundle)
+			throws IOException {
+		HashMap<String, Integer> names = new HashMap<String, Integer>();
+		ArrayList<String> dictionary = new ArrayList<String>();
+		for (Packet child : bundle.packets) {
+			if (!names.containsKey(child.name)) {
+				names.put(child.name, dictionary.size());
+				dictionary.add(child.name);
+			}
+		}
+		PacketIO.writeVarInt(os, bundle.packets.size());
+		PacketIO.writeVarInt(os, dictionary.size());
+		for (String name : dictionary) {
+			PacketIO.writeString(os, name);
+		}
+		for (Packet child : bundle.packets) {
+			PacketIO.writeVarInt(os, names.get(child.name));
+			writeBody(os, child, false);
+		}
+	}
+
+	/**
+	 * Reads a packet written by {@link #writePacket(OutputStream, Packet)}.
+	 * 
+	 * @param is
+	 *            the stream to read from.
+	 * @return the packet read.
+	 * @throws IOException
+	 */
+	public Packet readPacket(InputStream is) throws IOException {
+		return readPacket(is, null);
+	}
+
+	/**
+	 * Reads a packet written by {@link #writePacket(OutputStream, Packet)}. If
+	 * it is a bundle and unbundler is set, each of its children is handed to
+	 * unbundler as soon as it has been decoded, instead of being collected
+	 * into a BundlePacket.
+	 * 
+	 * @param is
+	 *            the stream to read from.
+	 * @param unbundler
+	 *            the listener to stream bundled packets to, may be null.
+	 * @return the packet read, or null if it was a bundle whose children were
+	 *         all handed to unbundler.
+	 * @throws IOException
+	 */
+	public Packet readPacket(InputStream is, PacketListener unbundler)
+			throws IOException {
+		return readBody(is, null, unbundler, 0);
+	}
+
+	/**
+	 * Reads a packet's ID, its name if name is null, and its contents. depth
+	 * is the number of bundles the packet is in.
+	 */
+	private Packet readBody(InputStream is, String name,
+			PacketListener unbundler, int depth) throws IOException {
+		int header = PacketIO.readVarInt(is);
+		int index = header >>> 1;
+		boolean codec = (header & 1) != 0;
+		PacketInfoProvider info;
+		String id;
+		if (index == 0) {
+			id = PacketIO.readString(is);
+			info = Packet.registry.get(id);
+		} else {
+			id = index <= ids.length ? ids[index - 1] : "#" + index;
+			info = getProvider(index);
+		}
+		if (name == null)
+			name = PacketIO.readString(is);
+		PacketInfoProvider promised = codec && index > 0
+				&& index <= ids.length ? advertised[index - 1] : null;
+		Packet packet;
+		if (codec && (info instanceof BundlePacketInfoProvider
+				|| promised instanceof BundlePacketInfoProvider)) {
+			packet = readBundle(is, unbundler, depth);
+		} else if (codec) {
+			// the codec promised in the handshake may have been replaced by
+			// a provider without one since
+			PacketInfoProvider decoder = info instanceof PacketCodec ? info
+					: promised;
+			if (decoder == null)
+				throw new IOException("No codec for packet id: " + id);
+			DataInput in = is instanceof DataInput ? (DataInput) is
+					: new DataInputStream(is);
+			packet = ((PacketCodec) decoder).decode(in);
+			if (decoder != info) {
+				if (info == null)
+					throw new IOException("Unknown packet id: " + id);
+				MapSTreeNode root = new MapSTreeNode();
+				decoder.write(packet, root);
+				packet = info.read(root);
+			}
+		} else {
+			MapSTreeNode root = (MapSTreeNode) STreeIO
+					.readSTreeNodeFromStream(is);
+			if (info == null)
+				throw new IOException("Unknown packet id: " + id);
+			packet = info.read(root);
+		}
+		if (packet != null)
+			packet.name = name;
+		return packet;
+	}
+
+	private BundlePacket readBundle(InputStream is, PacketListener unbundler,
+			int depth) throws IOException {
+		if (depth >= MAX_BUNDLE_DEPTH)
+			throw new IOException("Bundles nested too deeply");
+		int count = PacketIO.readVarInt(is);
+		String[] dictionary = new String[checkCount(PacketIO.readVarInt(is))];
+		for (int i = 0; i < dictionary.length; i++) {
+			dictionary[i] = PacketIO.readString(is);
+		}
+		BundlePacket bundle = unbundler == null ? new BundlePacket() : null;
+		for (int i = 0; i < count; i++) {
+			int ref = PacketIO.readVarInt(is);
+			if (ref < 0 || ref >= dictionary.length)
+				throw new IOException("Invalid bundled packet name: " + ref);
+			Packet child = readBody(is, dictionary[ref], unbundler,
+					depth + 1);
+			if (child == null)
+				continue;
+			if (unbundler != null)
+				unbundler.onReceivePacket(child.name, child);
+			else
+				bundle.packets.add(child);
+		}
+		return bundle;
+	}
+
+	/**
+	 * Reads a whole packet written by
+	 * {@link #writePacket(OutputStream, Packet)}, only decoding its ID and
+	 * name. If the packet's provider is a {@link LazyPacketInfoProvider}, the
+	 * rest is copied and left for the packet to decode when it's used.
+	 * 
+	 * @param data
+	 *            the array containing the packet.
+	 * @param offset
+	 *            the offset of the packet within data.
+	 * @param length
+	 *            the length of the packet.
+	 * @param unbundler
+	 *            the listener to stream bundled packets to, may be null.
+	 * @return the packet read, or null if it was a bundle whose children were
+	 *         all handed to unbundler.
+	 * @throws IOException
+	 */
+	public Packet readLazyPacket(byte[] data, int offset, int length,
+			PacketListener unbundler) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+		int header = PacketIO.readVarInt(buffer);
+		int index = header >>> 1;
+		PacketInfoProvider info = getProvider(index);
+		if (header < 0 || (header & 1) != 0
+				|| !(info instanceof LazyPacketInfoProvider))
+			return readPacket(new ByteArrayInputStream(data, offset, length),
+					unbundler);
+		String name = PacketIO.readString(buffer);
+		if (name == null)
+			throw new IOException("Truncated packet");
+		byte[] tree = new byte[buffer.remaining()];
+		buffer.get(tree);
+		Packet packet = ((LazyPacketInfoProvider) info).readLazy(tree);
+		packet.name = name;
+		return packet;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof CompactPacketIds) {
+			CompactPacketIds other = (CompactPacketIds) o;
+			return hash == other.hash && Arrays.equals(ids, other.ids)
+					&& Arrays.equals(peerCodecs, other.peerCodecs);
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	private static class Resolved {
+		final PacketRegistry.Snapshot snapshot;
+		final PacketInfoProvider[] providers;
+
+		Resolved(PacketRegistry.Snapshot snapshot,
+				PacketInfoProvider[] providers) {
+			this.snapshot = snapshot;
+			this.providers = providers;
+		}
+	}
+}
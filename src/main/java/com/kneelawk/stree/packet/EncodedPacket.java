@@ -0,0 +1,172 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A packet whose encoded bytes are kept and reused, for packets that are
+ * sent many times without changing, like map data or configuration
+ * snapshots. The packet is encoded at most once per {@link WireFormat}, and
+ * connections queue the stored bytes without copying them. By default the
+ * bytes are kept in direct buffers, so channels can write them to the socket
+ * without a heap copy.
+ * 
+ * <p>
+ * Compact wire formats carry the ID table the peer sent, so there can be as
+ * many formats as there are distinct peers. At most
+ * {@link #DEFAULT_MAX_ENCODINGS} of them are kept by default. Once that many
+ * are kept, encoding another format evicts one of them.
+ * </p>
+ * 
+ * @author kneelawk
+ *
+ */
+public class EncodedPacket {
+	public static final int DEFAULT_MAX_ENCODINGS = 8;
+
+	protected Packet packet;
+	protected boolean direct;
+	protected int maxEncodings = DEFAULT_MAX_ENCODINGS;
+	protected WireFormat givenFormat;
+	protected ByteBuffer givenData;
+	protected ConcurrentHashMap<WireFormat, ByteBuffer> encodings = new ConcurrentHashMap<WireFormat, ByteBuffer>();
+
+	/**
+	 * @param packet
+	 *            the packet to encode on demand, keeping the bytes in direct
+	 *            buffers.
+	 */
+	public EncodedPacket(Packet packet) {
+		this(packet, true);
+	}
+
+	/**
+	 * @param packet
+	 *            the packet to encode on demand.
+	 * @param direct
+	 *            whether to keep the bytes in direct buffers instead of on the
+	 *            heap.
+	 */
+	public EncodedPacket(Packet packet, boolean direct) {
+		this.packet = packet;
+		this.direct = direct;
+	}
+
+	/**
+	 * Wraps bytes that were encoded in advance, e.g. a memory-mapped file.
+	 * 
+	 * @param packet
+	 *            the packet the bytes hold, used for metrics and to encode it
+	 *            in other wire formats. May be null, in which case the packet
+	 *            can only be sent in format.
+	 * @param format
+	 *            the wire format data is in.
+	 * @param data
+	 *            the encoded packet, from its position to its limit. It must
+	 *            not be modified afterwards. It is never evicted.
+	 */
+	public EncodedPacket(Packet packet, WireFormat format, ByteBuffer data) {
+		this(packet, data.isDirect());
+		givenFormat = format;
+		givenData = data.slice();
+	}
+
+	/**
+	 * @return the packet the bytes hold, or null if it isn't known.
+	 */
+	public Packet getPacket() {
+		return packet;
+	}
+
+	public int getMaxEncodings() {
+		return maxEncodings;
+	}
+
+	/**
+	 * Sets how many wire formats this packet keeps its bytes in, not counting
+	 * bytes it was created with. Defaults to {@link #DEFAULT_MAX_ENCODINGS}.
+	 * 
+	 * @param maxEncodings
+	 *            the most encodings to keep.
+	 */
+	public void setMaxEncodings(int maxEncodings) {
+		this.maxEncodings = maxEncodings;
+	}
+
+	/**
+	 * Gets the packet's bytes in a wire format, encoding them the first time
+	 * they're asked for.
+	 * 
+	 * @param format
+	 *            the wire format of the connection the bytes are for.
+	 * @return a view of the encoded bytes, which must not be modified.
+	 * @throws IOException
+	 *             if the packet can't be encoded, or is only known in another
+	 *             wire format.
+	 */
+	public ByteBuffer getData(WireFormat format) throws IOException {
+		if (givenFormat != null && givenFormat.equals(format))
+			return givenData.duplicate();
+		ByteBuffer data = encodings.get(format);
+		if (data == null) {
+			if (packet == null)
+				throw new IOException(
+						"Packet is not available in this wire format");
+			data = format.encode(packet);
+			if (direct) {
+				ByteBuffer copy = ByteBuffer.allocateDirect(data.remaining());
+				copy.put(data);
+				copy.flip();
+				data = copy;
+			}
+			data = keep(format, data);
+		}
+		return data.duplicate();
+	}
+
+	/**
+	 * Keeps the bytes of a newly encoded format, evicting another format's
+	 * bytes if {@link #maxEncodings} are already kept.
+	 * 
+	 * @return the bytes kept for format, which may have been put there by
+	 *         another thread.
+	 */
+	private ByteBuffer keep(WireFormat format, ByteBuffer data) {
+		// racing threads can overshoot the limit by a few entries
+		if (encodings.size() >= maxEncodings) {
+			Iterator<WireFormat> it = encodings.keySet().iterator();
+			if (it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		ByteBuffer existing = encodings.putIfAbsent(format, data);
+		return existing != null ? existing : data;
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe blocking queue split into FIFO lanes, where lane 0 comes
+ * first. Elements are always taken from the first lane that isn't empty, so
+ * an element added to an earlier lane overtakes everything waiting in later
+ * ones.
+ * 
+ * @author kneelawk
+ *
+ * @param <E>
+ *            the type of the queued elements.
+ */
+public class LaneQueue<E> {
+	protected ArrayDeque<E>[] lanes;
+	protected int size;
+	protected ReentrantLock lock = new ReentrantLock();
+	protected Condition notEmpty = lock.newCondition();
+
+	/**
+	 * @param laneCount
+	 *            the number of lanes.
+	 */
+	@SuppressWarnings("unchecked")
+	public LaneQueue(int laneCount) {
+		lanes = new ArrayDeque[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			lanes[i] = new ArrayDeque<E>();
+		}
+	}
+
+	/**
+	 * Adds an element to the end of a lane.
+	 */
+	public void add(E e, int lane) {
+		lock.lock();
+		try {
+			lanes[lane].addLast(e);
+			size++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds an element to the front of a lane, so it is the next one taken
+	 * from that lane.
+	 */
+	public void addFirst(E e, int lane) {
+		lock.lock();
+		try {
+			lanes[lane].addFirst(e);
+			size++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the next element, or null if the queue is empty.
+	 */
+	public E poll() {
+		lock.lock();
+		try {
+			return size == 0 ? null : next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the next element.
+	 * 
+	 * @return the next element.
+	 * @throws InterruptedException
+	 */
+	public E take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (size == 0)
+				notEmpty.await();
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits up to timeout for the next element.
+	 * 
+	 * @return the next element, or null if none arrived in time.
+	 * @throws InterruptedException
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (size == 0) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the oldest element of the last lane that isn't empty, or null if
+	 *         the queue is empty.
+	 */
+	public E pollLast() {
+		lock.lock();
+		try {
+			for (int i = lanes.length - 1; i >= 0; i--) {
+				E e = lanes[i].pollFirst();
+				if (e != null) {
+					size--;
+					return e;
+				}
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves up to maxElements elements to c in the order they would be taken.
+	 * 
+	 * @return the number of elements moved.
+	 */
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		lock.lock();
+		try {
+			int count = 0;
+			while (count < maxElements && size > 0) {
+				c.add(next());
+				count++;
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves every element to c in the order they would be taken.
+	 * 
+	 * @return the number of elements moved.
+	 */
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Removes the next element. Must be called holding the lock with the
+	 * queue not empty.
+	 */
+	private E next() {
+		for (ArrayDeque<E> lane : lanes) {
+			E e = lane.pollFirst();
+			if (e != null) {
+				size--;
+				return e;
+			}
+		}
+		throw new IllegalStateException("Queue is empty");
+	}
+}
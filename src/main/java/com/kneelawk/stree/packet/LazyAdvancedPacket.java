@@ -0,0 +1,91 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import com.kneelawk.stree.core.MapSTreeNode;
+import com.kneelawk.stree.core.STreeIO;
+
+/**
+ * An AdvancedPacket that keeps its encoded tree and only decodes it the first
+ * time {@link #getData()} is called. Listeners of lazily decoded connections
+ * must use getData() rather than the data field.
+ * 
+ * @author kneelawk
+ *
+ */
+public class LazyAdvancedPacket extends AdvancedPacket {
+	protected byte[] encoded;
+
+	/**
+	 * @param encoded
+	 *            the STree encoding of the packet's data.
+	 */
+	public LazyAdvancedPacket(byte[] encoded) {
+		super((MapSTreeNode) null);
+		this.encoded = encoded;
+	}
+
+	/**
+	 * @return whether the data has been decoded yet.
+	 */
+	public synchronized boolean isDecoded() {
+		return encoded == null;
+	}
+
+	/**
+	 * Decodes the packet's data if that hasn't happened yet.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the data can't be decoded.
+	 */
+	@Override
+	public synchronized MapSTreeNode getData() {
+		if (encoded != null) {
+			try {
+				data = (MapSTreeNode) STreeIO
+						.readSTreeNodeFromStream(new ByteArrayInputStream(
+								encoded));
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"Unable to decode packet data", e);
+			}
+			encoded = null;
+		}
+		return data;
+	}
+
+	@Override
+	public synchronized void setData(MapSTreeNode data) {
+		this.data = data;
+		encoded = null;
+	}
+
+	public String toString() {
+		return "AdvancedPacket " + name + ":" + getData().toString();
+	}
+}
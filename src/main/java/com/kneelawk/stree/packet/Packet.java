@@ -25,7 +25,6 @@
 package com.kneelawk.stree.packet;
 
 import java.io.IOException;
-import java.util.TreeMap;
 
 import com.kneelawk.stree.core.MapSTreeNode;
 import com.kneelawk.stree.core.StringSTreeNode;
@@ -35,7 +34,18 @@ import com.kneelawk.stree.packet.infoProviders.PacketInfoProvider;
 import com.kneelawk.stree.packet.infoProviders.SimplePacketInfoProvider;
 
 public abstract class Packet {
-	public static TreeMap<String, PacketInfoProvider> infoProviders = createProviderList();
+	/**
+	 * The providers packets are read with. Safe to register with and
+	 * unregister from while packets are being read.
+	 */
+	public static final PacketRegistry registry = createRegistry();
+
+	private static final ClassValue<ProviderSlot> classProviders = new ClassValue<ProviderSlot>() {
+		@Override
+		protected ProviderSlot computeValue(Class<?> type) {
+			return new ProviderSlot();
+		}
+	};
 
 	public String name = "packet";
 
@@ -46,26 +56,45 @@ public abstract class Packet {
 		this.name = name;
 	}
 
-	private static TreeMap<String, PacketInfoProvider> createProviderList() {
-		TreeMap<String, PacketInfoProvider> infos = new TreeMap<String, PacketInfoProvider>();
-		addPacketInfoProvider(infos, new AdvancedPacketInfoProvider());
-		addPacketInfoProvider(infos, new BundlePacketInfoProvider());
-		addPacketInfoProvider(infos, new SimplePacketInfoProvider());
-		return infos;
+	private static PacketRegistry createRegistry() {
+		PacketRegistry registry = new PacketRegistry();
+		registry.register(AdvancedPacketInfoProvider.INSTANCE);
+		registry.register(BundlePacketInfoProvider.INSTANCE);
+		registry.register(SimplePacketInfoProvider.INSTANCE);
+		return registry;
 	}
 
-	private static void addPacketInfoProvider(
-			TreeMap<String, PacketInfoProvider> infos,
-			PacketInfoProvider provider) {
-		infos.put(provider.getPacketID(), provider);
+	public static void registerInfoProvider(PacketInfoProvider provider) {
+		registry.register(provider);
 	}
 
-	public static void registerInfoProvider(PacketInfoProvider provider) {
-		if (infoProviders.containsKey(provider.getPacketID()))
-			throw new RuntimeException(
-					"There is already a packet registered as: "
-							+ provider.getPacketID());
-		infoProviders.put(provider.getPacketID(), provider);
+	/**
+	 * Removes a provider from {@link #registry}, e.g. when the plugin that
+	 * registered it is unloaded.
+	 * 
+	 * @param provider
+	 *            the provider to remove.
+	 * @return whether it was registered.
+	 */
+	public static boolean unregisterInfoProvider(PacketInfoProvider provider) {
+		return registry.unregister(provider);
+	}
+
+	/**
+	 * Gets the provider for packet's class. The first packet of each class is
+	 * asked for its provider with {@link #getInfoProvider()}; every packet of
+	 * that class after it gets the same provider without allocating.
+	 * 
+	 * @param packet
+	 *            the packet to get the provider for.
+	 * @return the class's provider.
+	 */
+	public static PacketInfoProvider infoProviderOf(Packet packet) {
+		ProviderSlot slot = classProviders.get(packet.getClass());
+		PacketInfoProvider provider = slot.provider;
+		if (provider == null)
+			slot.provider = provider = packet.getInfoProvider();
+		return provider;
 	}
 
 	/**
@@ -81,7 +110,7 @@ public abstract class Packet {
 		if (packet == null)
 			throw new NullPointerException("Packet cannot be null!");
 		MapSTreeNode root = new MapSTreeNode();
-		PacketInfoProvider info = packet.getInfoProvider();
+		PacketInfoProvider info = infoProviderOf(packet);
 		info.write(packet, root);
 		root.put("packetId", new StringSTreeNode(info.getPacketID()));
 		root.put("packetName", new StringSTreeNode(packet.name));
@@ -102,7 +131,7 @@ public abstract class Packet {
 		if (root == null)
 			throw new NullPointerException("Root cannot be null!");
 		String id = root.getString("packetId").getValue();
-		PacketInfoProvider info = infoProviders.get(id);
+		PacketInfoProvider info = registry.get(id);
 		if (info == null)
 			throw new IOException("Unknown packet id: " + id);
 		Packet packet = info.read(root);
@@ -110,5 +139,16 @@ public abstract class Packet {
 		return packet;
 	}
 
+	/**
+	 * Gets the provider that reads and writes this kind of packet. This should
+	 * return the same stateless provider every time; it is only called once
+	 * per class by {@link #infoProviderOf(Packet)}.
+	 * 
+	 * @return the provider for this packet's class.
+	 */
 	public abstract PacketInfoProvider getInfoProvider();
+
+	private static class ProviderSlot {
+		volatile PacketInfoProvider provider;
+	}
 }
@@ -24,35 +24,232 @@
 
 package com.kneelawk.stree.packet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.kneelawk.stree.packet.infoProviders.PacketInfoProvider;
 import com.kneelawk.stree.packet.listener.DisconnectionListener;
+import com.kneelawk.stree.packet.listener.ListenerTable;
 import com.kneelawk.stree.packet.listener.PacketListener;
+import com.kneelawk.stree.packet.metrics.ConnectionMetrics;
+import com.kneelawk.stree.packet.metrics.CountingInputStream;
+import com.kneelawk.stree.packet.metrics.CountingOutputStream;
+import com.kneelawk.stree.packet.metrics.LatencyHistogram;
+import com.kneelawk.stree.packet.metrics.MetricsSnapshot;
+import com.kneelawk.stree.packet.metrics.MetricsSource;
+import com.kneelawk.stree.packet.streamProviders.ConnectionInputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.ConnectionOutputStreamProvider;
 import com.kneelawk.stree.packet.streamProviders.InputStreamProvider;
 import com.kneelawk.stree.packet.streamProviders.OutputStreamProvider;
 import com.kneelawk.stree.packet.streamProviders.ThroughInputStreamProvider;
 import com.kneelawk.stree.packet.streamProviders.ThroughOutputStreamProvider;
 
-public class PacketConnection {
+public class PacketConnection implements MetricsSource {
+	/**
+	 * The maximum number of packets the dispatcher takes off the queue at
+	 * once.
+	 */
+	public static final int DISPATCH_BATCH_SIZE = 64;
+
+	/**
+	 * The maximum number of queued packets the writer sends before flushing.
+	 */
+	public static final int WRITE_BATCH_SIZE = 256;
+
+	/**
+	 * The maximum number of packets a listener lane hands to its listener
+	 * before giving its executor thread up to other lanes.
+	 */
+	public static final int LANE_BATCH_SIZE = 64;
+
+	/**
+	 * The size of the buffer queued packets are written through.
+	 */
+	public static final int WRITE_BUFFER_SIZE = 8192;
+
+	/**
+	 * The default number of encoded bytes that may wait in the write queue
+	 * before senders are made to wait.
+	 */
+	public static final long DEFAULT_HIGH_WATER_MARK = 1024 * 1024;
+
+	/**
+	 * How long a disconnecting connection waits for queued packets to be
+	 * written before closing the socket.
+	 */
+	public static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+	/**
+	 * How long, by default, a server waits for its client to open the feature
+	 * handshake before falling back to no features, and a client waits for
+	 * the server's reply.
+	 */
+	public static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 2000;
+
+	/**
+	 * How much longer than the handshake timeout a send waits for the
+	 * handshake to finish before giving up on the connection.
+	 */
+	public static final long HANDSHAKE_GRACE_MILLIS = 1000;
+
+	/**
+	 * The largest frame, in bytes, a connection accepts from its peer by
+	 * default. Bigger packets have to be sent in chunks.
+	 * 
+	 * @see #setMaxFrameLength(int)
+	 */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+	/**
+	 * How much of a frame is read before the buffer it is read into grows, so
+	 * a frame header alone can't make a connection allocate the whole frame.
+	 */
+	public static final int FRAME_READ_STEP = 64 * 1024;
+
+	/**
+	 * Sent by a client to open a feature handshake and echoed back by the
+	 * server. Every byte has its high bit set, so it can't be mistaken for the
+	 * start of a valid frame.
+	 */
+	public static final int HANDSHAKE_MAGIC = 0xFFD3D4F0;
+
+	/**
+	 * Feature flag: packets are sent as length-prefixed frames.
+	 */
+	public static final int FEATURE_FRAMING = 1;
+
+	/**
+	 * Feature flag: the client sends a table of its packet info providers in
+	 * the handshake and packets are sent with {@link CompactPacketIds}
+	 * instead of string IDs and names in every tree.
+	 */
+	public static final int FEATURE_COMPACT_IDS = 2;
+
+	/**
+	 * Feature flag: packets larger than the sender's chunk size are sent as a
+	 * series of chunk frames, so packets of a higher priority can be written
+	 * in between them. Only takes effect together with
+	 * {@link #FEATURE_FRAMING}.
+	 * 
+	 * @see #setChunkSize(int)
+	 */
+	public static final int FEATURE_CHUNKING = 4;
+
+	/**
+	 * Feature flag: the peer unbundles packets sent in a BundlePacket named
+	 * {@link #COALESCED_BUNDLE_NAME}, so this connection may coalesce the
+	 * packets it sends.
+	 * 
+	 * @see #setCoalescing(int, long, TimeUnit)
+	 */
+	public static final int FEATURE_COALESCING = 8;
+
+	/**
+	 * The name of the BundlePackets that coalesced packets are sent in.
+	 * Receiving connections always hand their packets to listeners one at a
+	 * time.
+	 */
+	public static final String COALESCED_BUNDLE_NAME = "stree:coalesced";
 
 	protected Socket socket;
 	protected InputStream is;
 	protected OutputStream os;
 	protected InputStreamProvider isProvider;
 	protected OutputStreamProvider osProvider;
-	protected ArrayList<Packet> packetQueue;
-	protected ArrayList<PacketListener> listeners;
-	protected ArrayList<DisconnectionListener> disconnectListeners;
-	protected TreeMap<String, ArrayList<PacketListener>> namedListeners;
-	protected boolean disconnect = false;
-	protected boolean running = false;
+	protected LaneQueue<QueuedPacket> packetQueue;
+	protected PacketPriorities priorities = new PacketPriorities();
+	protected int inboundPacketLimit = 0;
+	protected long inboundByteLimit = 0;
+	protected InboundPolicy inboundPolicy = InboundPolicy.BLOCK;
+	protected AtomicInteger inboundPackets = new AtomicInteger();
+	protected AtomicLong inboundBytes = new AtomicLong();
+	protected AtomicLong droppedPackets = new AtomicLong();
+	protected Object inboundLock = new Object();
+	protected AtomicReference<ListenerTable> listeners;
+	protected CopyOnWriteArrayList<DisconnectionListener> disconnectListeners;
+	protected Executor listenerExecutor;
+	protected ConcurrentHashMap<String, ConcurrentHashMap<PacketListener, ListenerLane>> lanes = new ConcurrentHashMap<String, ConcurrentHashMap<PacketListener, ListenerLane>>();
+	protected volatile boolean disconnect = false;
+	protected volatile boolean running = false;
+	protected boolean framed = false;
+	protected int requestedFeatures = 0;
+	protected int supportedFeatures = 0;
+	protected volatile int negotiatedFeatures = 0;
+	protected CompactPacketIds packetIds;
+	protected boolean lazyDecoding = false;
+	protected boolean unbundling = false;
+	protected int unbundledBytes;
+	protected PacketListener unbundler = new PacketListener() {
+		@Override
+		public void onReceivePacket(String name, Packet packet) {
+			// the first child counts the bundle's bytes, like coalesced ones
+			deliver(packet, unbundledBytes);
+			unbundledBytes = 0;
+		}
+	};
+	protected volatile CountDownLatch handshakeDone = new CountDownLatch(0);
+	protected long handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+	protected ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+	protected ThreadFactory threadFactory;
+	protected WireFormat wireFormat;
+	protected OutputStream writeStream;
+	protected GatheringByteChannel writeChannel;
+	protected ByteBuffer[] writeBuffers;
+	protected byte[] copyBuffer;
+	protected LaneQueue<OutgoingPacket> writeQueue;
+	protected int chunkSize = 0;
+	protected int maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+	protected int nextTransferId = 0;
+	protected ChunkReassembler reassembler = new ChunkReassembler(bufferPool);
+	protected Object sendLock = new Object();
+	protected long queuedBytes = 0;
+	protected long highWaterMark = DEFAULT_HIGH_WATER_MARK;
+	protected long lingerNanos = 0;
+	protected volatile boolean writerClosed = false;
+	protected Thread writer;
+	protected AtomicLong dispatchedPackets = new AtomicLong();
+	protected LatencyHistogram handOffLatency = new LatencyHistogram();
+	protected long startTime;
+	protected ConnectionMetrics metrics;
+	protected Object coalesceLock = new Object();
+	protected int coalesceLimit = 0;
+	protected long coalesceWindowNanos = 0;
+	protected long coalesceDeadline;
+	protected ArrayList<Packet> coalesced = new ArrayList<Packet>();
+	protected ArrayList<SendFuture> coalescedFutures = new ArrayList<SendFuture>();
+	protected boolean holdingCoalesced = false;
+	protected AtomicBoolean flushRequested = new AtomicBoolean();
 
 	public PacketConnection(Socket socket) throws IOException {
 		this(socket, new ThroughInputStreamProvider(),
@@ -62,49 +259,67 @@ public class PacketConnection {
 	public PacketConnection(Socket socket, InputStreamProvider inProv,
 			OutputStreamProvider outProv) throws IOException {
 		this.socket = socket;
-		is = socket.getInputStream();
+		is = new BufferedInputStream(socket.getInputStream());
 		os = socket.getOutputStream();
 		isProvider = inProv;
 		osProvider = outProv;
-		listeners = new ArrayList<PacketListener>();
-		namedListeners = new TreeMap<String, ArrayList<PacketListener>>();
-		packetQueue = new ArrayList<Packet>();
-		disconnectListeners = new ArrayList<DisconnectionListener>();
+		listeners = new AtomicReference<ListenerTable>(ListenerTable.EMPTY);
+		packetQueue = new LaneQueue<QueuedPacket>(
+				PacketPriority.values().length);
+		writeQueue = new LaneQueue<OutgoingPacket>(
+				PacketPriority.values().length);
+		disconnectListeners = new CopyOnWriteArrayList<DisconnectionListener>();
 	}
 
 	public void addPacketListener(PacketListener listener) {
-		listeners.add(listener);
+		while (true) {
+			ListenerTable table = listeners.get();
+			if (listeners.compareAndSet(table, table.withListener(listener)))
+				return;
+		}
 	}
 
 	public void addPacketListenerForNames(PacketListener listener,
 			String... names) {
-		for (String name : names) {
-			ArrayList<PacketListener> listeners = namedListeners.get(name);
-			boolean createNew = listeners == null;
-			if (createNew)
-				listeners = new ArrayList<PacketListener>();
-			listeners.add(listener);
-			if (createNew)
-				namedListeners.put(name, listeners);
+		while (true) {
+			ListenerTable table = listeners.get();
+			if (listeners.compareAndSet(table,
+					table.withListenerForNames(listener, names)))
+				return;
 		}
 	}
 
 	public boolean removePacketListener(PacketListener listener) {
-		return listeners.remove(listener);
+		while (true) {
+			ListenerTable table = listeners.get();
+			ListenerTable removed = table.withoutListener(listener);
+			if (removed == table)
+				return false;
+			if (listeners.compareAndSet(table, removed))
+				return true;
+		}
 	}
 
 	public void removePacketListenerForNames(PacketListener listener,
 			String... names) {
-		for (String name : names) {
-			ArrayList<PacketListener> listeners = namedListeners.get(name);
-			if (listeners != null) {
-				listeners.remove(listener);
-				if (listeners.size() < 1)
-					namedListeners.remove(name);
-			}
+		while (true) {
+			ListenerTable table = listeners.get();
+			ListenerTable removed = table.withoutListenerForNames(listener,
+					names);
+			if (removed == table)
+				return;
+			if (listeners.compareAndSet(table, removed))
+				return;
 		}
 	}
 
+	/**
+	 * @return the listeners received packets are dispatched to right now.
+	 */
+	public ListenerTable getListenerTable() {
+		return listeners.get();
+	}
+
 	public void addDisconnectionListener(DisconnectionListener listener) {
 		disconnectListeners.add(listener);
 	}
@@ -116,61 +331,1027 @@ public class PacketConnection {
 	public PacketConnection start() {
 		if (!running) {
 			running = true;
-			Thread reader = new Thread(new Runnable() {
+			startTime = System.nanoTime();
+			if (requestedFeatures != 0 || supportedFeatures != 0)
+				handshakeDone = new CountDownLatch(1);
+			try {
+				openStreams();
+			} catch (IOException e) {
+				writeStream = new BufferedOutputStream(os, WRITE_BUFFER_SIZE);
+				stop();
+			}
+			Runnable readLoop = new Runnable() {
 				@Override
 				public void run() {
+					try {
+						handshake();
+						if (isProvider instanceof ConnectionInputStreamProvider)
+							is = isProvider.getInputStream(is);
+					} catch (IOException e) {
+						disconnect = true;
+						wakeDispatcher();
+						return;
+					}
 					while (running) {
-						Packet packet = null;
+						QueuedPacket packet = null;
 						try {
-							packet = PacketIO.readPacket(isProvider
-									.getInputStream(is));
+							packet = readQueuedPacket();
 						} catch (SocketException e) {
+							if (metrics != null)
+								metrics.readError();
 						} catch (EOFException e) {
 							disconnect = true;
+							wakeDispatcher();
 							break;
 						} catch (IOException e) {
+							if (metrics != null)
+								metrics.readError();
 						}
 
 						if (packet != null) {
-							packetQueue.add(packet);
+							queue(packet);
 						}
 					}
+					reassembler.clear();
 				}
-			}, "PacketReader");
-			Thread queueListener = new Thread(new Runnable() {
+			};
+			Runnable dispatchLoop = new Runnable() {
 				@Override
 				public void run() {
-					while (running) {
+					dispatchLoop();
+				}
+			};
+			Runnable writeLoop = new Runnable() {
+				@Override
+				public void run() {
+					writeLoop();
+				}
+			};
+			Thread reader = PacketThreads.newThread(threadFactory, readLoop,
+					"PacketReader");
+			Thread queueListener = PacketThreads.newThread(threadFactory,
+					dispatchLoop, "EventListener");
+			writer = PacketThreads.newThread(threadFactory, writeLoop,
+					"PacketWriter");
+			reader.start();
+			queueListener.start();
+			writer.start();
+		}
+		return this;
+	}
+
+	/**
+	 * Sets up the streams the reader and writer use. With metrics enabled, the
+	 * socket streams are wrapped below the buffers to count the bytes that go
+	 * over the wire.
+	 * 
+	 * @throws IOException
+	 */
+	protected void openStreams() throws IOException {
+		if (metrics != null) {
+			is = new BufferedInputStream(new CountingInputStream(
+					socket.getInputStream(), metrics));
+			os = new CountingOutputStream(socket.getOutputStream(), metrics);
+		}
+		writeStream = new BufferedOutputStream(os, WRITE_BUFFER_SIZE);
+		if (osProvider instanceof ConnectionOutputStreamProvider)
+			writeStream = osProvider.getOutputStream(writeStream);
+		else if (socket.getChannel() != null)
+			writeChannel = socket.getChannel();
+	}
+
+	/**
+	 * Runs the feature handshake if this connection requests or supports any
+	 * features. A client sends {@link #HANDSHAKE_MAGIC} and the features it
+	 * wants, and the server answers with the magic and the subset it agreed
+	 * to. A server whose client doesn't open with the magic, or sends nothing
+	 * at all within the handshake timeout, falls back to no features, so
+	 * legacy clients and clients waiting for the server to speak first still
+	 * work. The whole handshake has to be read within the handshake timeout,
+	 * so a client that stalls partway through it, or a server that doesn't
+	 * reply in time, fails the handshake and the connection is closed.
+	 * 
+	 * @throws IOException
+	 */
+	protected void handshake() throws IOException {
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(handshakeTimeoutMillis);
+		try {
+			int timeout = socket.getSoTimeout();
+			try {
+				if (requestedFeatures != 0) {
+					DataOutputStream out = new DataOutputStream(
+							new BufferedOutputStream(os));
+					out.writeInt(HANDSHAKE_MAGIC);
+					PacketIO.writeVarInt(out, requestedFeatures);
+					CompactPacketIds table = null;
+					if ((requestedFeatures & FEATURE_COMPACT_IDS) != 0) {
+						table = CompactPacketIds.fromRegisteredProviders();
+						table.writeTable(out);
+					}
+					out.flush();
+					DataInputStream in = new DataInputStream(
+							new HandshakeInputStream(is, deadline));
+					int accepted;
+					try {
+						if (in.readInt() != HANDSHAKE_MAGIC)
+							throw new IOException("Invalid handshake reply");
+						accepted = PacketIO.readVarInt(in) & requestedFeatures;
+						if ((accepted & FEATURE_COMPACT_IDS) != 0) {
+							byte[] codecs = new byte[table.bitmapSize()];
+							in.readFully(codecs);
+							table.setPeerCodecBitmap(codecs);
+							packetIds = table;
+						}
+					} catch (SocketTimeoutException e) {
+						throw new IOException(
+								"Timed out waiting for handshake reply");
+					}
+					applyFeatures(accepted);
+				} else if (supportedFeatures != 0) {
+					PushbackInputStream pushback = new PushbackInputStream(is,
+							4);
+					is = pushback;
+					InputStream in = new HandshakeInputStream(pushback,
+							deadline);
+					byte[] magic = new byte[4];
+					int read = readMagic(in, magic);
+					if (read == 4
+							&& PacketIO.readInt(magic, 0) == HANDSHAKE_MAGIC) {
+						int requested;
+						CompactPacketIds table = null;
 						try {
-							Thread.sleep(10);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
+							requested = PacketIO.readVarInt(in);
+							if ((requested & FEATURE_COMPACT_IDS) != 0)
+								table = CompactPacketIds.readTable(in);
+						} catch (SocketTimeoutException e) {
+							throw new IOException(
+									"Timed out waiting for handshake");
 						}
-						if (packetQueue.size() > 0) {
-							Packet packet = packetQueue.get(0);
-							packetQueue.remove(0);
-							if (packet != null)
-								alertListeners(packet);
-						} else {
-							if (disconnect) {
-								running = false;
-								alertDisconnect();
-								try {
-									is.close();
-									os.close();
-									socket.close();
-								} catch (IOException e2) {
-								}
-								break;
-							}
+						int accepted = requested & supportedFeatures;
+						DataOutputStream out = new DataOutputStream(
+								new BufferedOutputStream(os));
+						out.writeInt(HANDSHAKE_MAGIC);
+						PacketIO.writeVarInt(out, accepted);
+						if ((accepted & FEATURE_COMPACT_IDS) != 0) {
+							out.write(table.getCodecBitmap());
+							packetIds = table;
 						}
+						out.flush();
+						applyFeatures(accepted);
+					} else {
+						pushback.unread(magic, 0, read);
 					}
 				}
-			}, "EventListener");
-			reader.start();
-			queueListener.start();
+			} finally {
+				socket.setSoTimeout(timeout);
+			}
+		} finally {
+			handshakeDone.countDown();
+		}
+	}
+
+	/**
+	 * Reads the first four bytes a client sends, giving up if it sends
+	 * nothing within the handshake timeout.
+	 * 
+	 * @param in
+	 *            the stream to read from, bounded by the handshake deadline.
+	 * @param magic
+	 *            the array to read into.
+	 * @return the number of bytes read, 4 or 0 if the client stayed silent.
+	 * @throws IOException
+	 *             if the client sent part of the magic and then stalled.
+	 */
+	protected int readMagic(InputStream in, byte[] magic) throws IOException {
+		int read = 0;
+		while (read < magic.length) {
+			int count;
+			try {
+				count = in.read(magic, read, magic.length - read);
+			} catch (SocketTimeoutException e) {
+				if (read == 0)
+					return 0;
+				throw new IOException("Timed out waiting for handshake");
+			}
+			if (count < 0)
+				throw new EOFException();
+			read += count;
+		}
+		return read;
+	}
+
+	/**
+	 * Switches this connection over to the features agreed on in the
+	 * handshake. If compact IDs were agreed on, {@link #packetIds} must
+	 * already hold the table.
+	 * 
+	 * @param features
+	 *            the negotiated features.
+	 */
+	protected void applyFeatures(int features) {
+		if ((features & FEATURE_FRAMING) == 0)
+			features &= ~FEATURE_CHUNKING;
+		negotiatedFeatures = features;
+		if ((features & FEATURE_FRAMING) != 0)
+			framed = true;
+		wireFormat = null;
+	}
+
+	/**
+	 * Blocks until the feature handshake, if any, has finished so nothing is
+	 * sent ahead of it. The handshake gives up by itself once its timeout has
+	 * passed, so this only waits a little longer than that before stopping
+	 * the connection.
+	 * 
+	 * @throws IOException
+	 *             if the handshake didn't finish in time.
+	 */
+	protected void awaitHandshake() throws IOException {
+		try {
+			if (handshakeTimeoutMillis <= 0) {
+				handshakeDone.await();
+			} else if (!handshakeDone.await(handshakeTimeoutMillis
+					+ HANDSHAKE_GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+				stop();
+				throw new IOException("Timed out waiting for handshake");
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(
+					"Interrupted waiting for handshake");
+		}
+	}
+
+	/**
+	 * Reads the next packet from this connection's socket. Framed packets are
+	 * read whole into a pooled buffer and left for the dispatcher to decode.
+	 * 
+	 * @return the packet or frame read, or null if a chunk was read that
+	 *         didn't complete its packet.
+	 * @throws IOException
+	 */
+	protected QueuedPacket readQueuedPacket() throws IOException {
+		if (framed) {
+			int length = checkFrameLength(PacketIO.readVarInt(is));
+			if (length == 0 && isChunking()) {
+				int transferId = PacketIO.readVarInt(is);
+				int header = PacketIO.readVarInt(is);
+				int chunkLength = checkFrameLength(header >>> 1);
+				boolean last = (header & 1) != 0;
+				ByteBuffer target;
+				try {
+					target = reassembler.startChunk(transferId, chunkLength,
+							last);
+				} catch (IOException e) {
+					// only a misbehaving peer starts this many transfers
+					stop();
+					throw e;
+				}
+				if (target == null) {
+					PacketIO.skipFully(is, chunkLength);
+					if (last)
+						transferDropped();
+					return null;
+				}
+				PacketIO.readFully(is, target.array(), target.arrayOffset()
+						+ target.position(), chunkLength);
+				target.position(target.position() + chunkLength);
+				ByteBuffer frame = reassembler.endChunk(transferId, last);
+				return frame != null ? new QueuedPacket(frame) : null;
+			}
+			return new QueuedPacket(readFramePayload(length));
+		}
+		return new QueuedPacket(PacketIO.readPacket(getPacketInputProvider()
+				.getInputStream(is), packetIds));
+	}
+
+	/**
+	 * Checks the length of a frame or chunk read from the peer against
+	 * {@link #maxFrameLength}, stopping the connection if it is too large as
+	 * the rest of the stream can't be trusted after it.
+	 * 
+	 * @param length
+	 *            the length read.
+	 * @return length.
+	 * @throws IOException
+	 *             if the length is invalid.
+	 */
+	protected int checkFrameLength(int length) throws IOException {
+		try {
+			return PacketIO.checkFrameLength(length, maxFrameLength);
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads a frame's payload into a pooled buffer. The buffer starts at
+	 * {@link #FRAME_READ_STEP} at most and doubles as the payload arrives, so
+	 * a peer has to actually send a large frame to make this allocate it.
+	 * 
+	 * @param length
+	 *            the length of the payload.
+	 * @return a buffer holding the payload.
+	 * @throws IOException
+	 */
+	protected ByteBuffer readFramePayload(int length) throws IOException {
+		ByteBuffer frame = bufferPool.acquire(Math.min(length,
+				FRAME_READ_STEP));
+		int read = 0;
+		try {
+			while (true) {
+				PacketIO.readFully(is, frame.array(), frame.arrayOffset()
+						+ read, frame.limit() - read);
+				read = frame.limit();
+				if (read == length)
+					return frame;
+				ByteBuffer bigger = bufferPool.acquire(Math.min(length,
+						read * 2));
+				System.arraycopy(frame.array(), frame.arrayOffset(),
+						bigger.array(), bigger.arrayOffset(), read);
+				bufferPool.release(frame);
+				frame = bigger;
+			}
+		} catch (IOException e) {
+			bufferPool.release(frame);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return whether chunk frames were agreed on in the handshake.
+	 */
+	protected boolean isChunking() {
+		return (negotiatedFeatures & FEATURE_CHUNKING) != 0;
+	}
+
+	/**
+	 * Counts a chunked packet that was dropped because it didn't fit in the
+	 * reassembly memory limit.
+	 */
+	protected void transferDropped() {
+		droppedPackets.incrementAndGet();
+		if (metrics != null)
+			metrics.packetDropped();
+	}
+
+	/**
+	 * Hands a packet read off the wire to the dispatcher.
+	 * 
+	 * @param packet
+	 *            the packet to dispatch.
+	 */
+	protected void queuePacket(Packet packet) {
+		queue(new QueuedPacket(packet));
+	}
+
+	protected void queue(QueuedPacket packet) {
+		if (packet != QueuedPacket.WAKE_UP && !admitInbound(packet))
+			return;
+		packetQueue.add(packet, laneOf(packet));
+	}
+
+	/**
+	 * Works out which dispatch lane a received packet goes in. Frames are
+	 * only sorted by priority if they can be peeked at without decoding,
+	 * which takes {@link #FEATURE_COMPACT_IDS} and no per-packet compression;
+	 * other frames are dispatched as {@link PacketPriority#NORMAL}.
+	 * 
+	 * @param packet
+	 *            the received packet or frame.
+	 * @return the lane's index.
+	 */
+	protected int laneOf(QueuedPacket packet) {
+		PacketPriorities priorities = this.priorities;
+		if (priorities.isEmpty())
+			return PacketPriority.NORMAL.ordinal();
+		if (packet.frame == null)
+			return priorities.getPriority(packet.packet).ordinal();
+		CompactPacketIds ids = packetIds;
+		if (ids == null
+				|| !(getPacketInputProvider() instanceof ThroughInputStreamProvider))
+			return PacketPriority.NORMAL.ordinal();
+		ByteBuffer frame = packet.frame.duplicate();
+		try {
+			int index = PacketIO.readVarInt(frame) >>> 1;
+			String id = index == 0 ? PacketIO.readString(frame) : ids
+					.getId(index);
+			return priorities.getPriority(id, PacketIO.readString(frame))
+					.ordinal();
+		} catch (IOException e) {
+			// left for the dispatcher to report when decoding it
+			return PacketPriority.NORMAL.ordinal();
+		}
+	}
+
+	/**
+	 * @param packet
+	 *            a packet being sent, may be null.
+	 * @return the write lane the packet goes in.
+	 */
+	protected int laneOf(Packet packet) {
+		return priorities.getPriority(packet).ordinal();
+	}
+
+	/**
+	 * Makes room in the inbound queue for a received packet according to the
+	 * inbound policy, and counts it as queued if it is let in.
+	 * 
+	 * @param packet
+	 *            the packet about to be queued.
+	 * @return whether to queue the packet.
+	 */
+	protected boolean admitInbound(QueuedPacket packet) {
+		if (isInboundFull(packet.bytes)) {
+			switch (inboundPolicy) {
+			case BLOCK:
+				awaitInboundRoom(packet.bytes);
+				break;
+			case DROP_OLDEST:
+				boolean wake = false;
+				while (isInboundFull(packet.bytes)) {
+					QueuedPacket oldest = packetQueue.pollLast();
+					if (oldest == null)
+						break;
+					if (oldest == QueuedPacket.WAKE_UP) {
+						wake = true;
+						continue;
+					}
+					inboundTaken(oldest);
+					drop(oldest);
+				}
+				if (wake)
+					wakeDispatcher();
+				break;
+			case DROP_NEWEST:
+				drop(packet);
+				return false;
+			case DISCONNECT:
+				drop(packet);
+				if (!disconnect)
+					stop();
+				return false;
+			}
+		}
+		inboundPackets.incrementAndGet();
+		inboundBytes.addAndGet(packet.bytes);
+		return true;
+	}
+
+	/**
+	 * @param bytes
+	 *            the size of a packet about to be queued.
+	 * @return whether queueing it would go over the inbound limits. A packet
+	 *         always fits in an empty queue.
+	 */
+	protected boolean isInboundFull(int bytes) {
+		int packets = inboundPackets.get();
+		if (packets == 0)
+			return false;
+		return inboundPacketLimit > 0 && packets >= inboundPacketLimit
+				|| inboundByteLimit > 0
+				&& inboundBytes.get() + bytes > inboundByteLimit;
+	}
+
+	/**
+	 * Blocks the reader until the inbound queue has room for a packet of the
+	 * given size, or the connection is closing.
+	 * 
+	 * @param bytes
+	 *            the size of the packet waiting to be queued.
+	 */
+	protected void awaitInboundRoom(int bytes) {
+		synchronized (inboundLock) {
+			while (isInboundFull(bytes) && running && !disconnect) {
+				try {
+					inboundLock.wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops counting a packet taken off the inbound queue.
+	 */
+	protected void inboundTaken(QueuedPacket packet) {
+		inboundPackets.decrementAndGet();
+		inboundBytes.addAndGet(-packet.bytes);
+	}
+
+	/**
+	 * Called after the dispatcher has taken packets off the inbound queue.
+	 * Wakes a reader blocked on a full queue.
+	 */
+	protected void onInboundDrained() {
+		if (inboundPolicy == InboundPolicy.BLOCK) {
+			synchronized (inboundLock) {
+				inboundLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Discards a received packet that didn't fit in the inbound queue.
+	 */
+	protected void drop(QueuedPacket packet) {
+		if (packet.frame != null) {
+			releaseFrame(packet.frame);
+			packet.frame = null;
+		}
+		droppedPackets.incrementAndGet();
+		if (metrics != null)
+			metrics.packetDropped();
+	}
+
+	/**
+	 * Wakes the dispatcher so it notices a pending disconnect or coalesced
+	 * packets to flush even when no packets are queued.
+	 */
+	protected void wakeDispatcher() {
+		packetQueue.add(QueuedPacket.WAKE_UP, PacketPriority.HIGH.ordinal());
+	}
+
+	/**
+	 * Blocks for queued packets and dispatches them in batches until the
+	 * connection disconnects.
+	 */
+	protected void dispatchLoop() {
+		ArrayList<QueuedPacket> batch = new ArrayList<QueuedPacket>(
+				DISPATCH_BATCH_SIZE);
+		while (running) {
+			try {
+				batch.add(packetQueue.take());
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				continue;
+			}
+			packetQueue.drainTo(batch, DISPATCH_BATCH_SIZE - 1);
+			dispatchBatch(batch);
+			batch.clear();
+			if (disconnect && packetQueue.isEmpty()) {
+				shutdown();
+				break;
+			}
+		}
+	}
+
+	protected void dispatchBatch(ArrayList<QueuedPacket> batch) {
+		if (flushRequested.getAndSet(false))
+			flushCoalesced(false);
+		// packets handed to listener lanes are counted again by the lanes, so
+		// they only stop counting as queued once the lanes have them
+		boolean laned = listenerExecutor != null;
+		if (!laned)
+			inboundTaken(batch);
+		for (QueuedPacket queued : batch) {
+			if (queued == QueuedPacket.WAKE_UP)
+				continue;
+			handOffLatency.record(System.nanoTime() - queued.queueTime);
+			int bytes = queued.frame != null ? queued.frame.remaining() : 0;
+			unbundledBytes = bytes;
+			Packet packet;
+			try {
+				packet = decode(queued);
+			} catch (IOException e) {
+				if (metrics != null)
+					metrics.decodeError();
+				continue;
+			}
+			if (packet != null)
+				deliver(packet, bytes);
+		}
+		if (laned)
+			inboundTaken(batch);
+	}
+
+	/**
+	 * Stops counting a batch of packets taken off the inbound queue.
+	 */
+	protected void inboundTaken(ArrayList<QueuedPacket> batch) {
+		boolean taken = false;
+		for (QueuedPacket queued : batch) {
+			if (queued != QueuedPacket.WAKE_UP) {
+				inboundTaken(queued);
+				taken = true;
+			}
+		}
+		if (taken)
+			onInboundDrained();
+	}
+
+	/**
+	 * Hands a received packet to the listeners.
+	 * 
+	 * @param packet
+	 *            the packet to dispatch.
+	 * @param bytes
+	 *            the packet's encoded size for the metrics, or 0 if unknown.
+	 */
+	protected void deliver(Packet packet, int bytes) {
+		if (packet instanceof BundlePacket
+				&& COALESCED_BUNDLE_NAME.equals(packet.name)) {
+			for (Packet child : ((BundlePacket) packet).packets) {
+				deliver(child, bytes);
+				bytes = 0;
+			}
+			return;
+		}
+		dispatchedPackets.incrementAndGet();
+		ConnectionMetrics metrics = this.metrics;
+		if (metrics == null) {
+			alertListeners(packet, bytes);
+		} else {
+			long start = System.nanoTime();
+			alertListeners(packet, bytes);
+			metrics.packetDispatched(packet, bytes, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Decodes a queued frame, then gives up its buffer with
+	 * {@link #releaseFrame(ByteBuffer)}. With unbundling on, the children of a
+	 * compact bundle are delivered as they are decoded.
+	 * 
+	 * @param queued
+	 *            the queued packet or frame.
+	 * @return the decoded packet, or null if it was a bundle whose children
+	 *         have already been delivered.
+	 * @throws IOException
+	 *             if the frame could not be decoded.
+	 */
+	protected Packet decode(QueuedPacket queued) throws IOException {
+		if (queued.frame == null)
+			return queued.packet;
+		ByteBuffer frame = queued.frame;
+		queued.frame = null;
+		if (!frame.hasArray()) {
+			try {
+				return decodeStream(new ByteBufferInputStream(frame));
+			} finally {
+				releaseFrame(frame);
+			}
+		}
+		try {
+			byte[] data = frame.array();
+			int offset = frame.arrayOffset() + frame.position();
+			int length = frame.remaining();
+			if (packetIds == null)
+				return PacketIO.decodePacket(data, offset, length,
+						getPacketInputProvider());
+			PacketListener unbundler = unbundling ? this.unbundler : null;
+			InputStreamProvider provider = getPacketInputProvider();
+			if (lazyDecoding && provider instanceof ThroughInputStreamProvider)
+				return packetIds.readLazyPacket(data, offset, length,
+						unbundler);
+			return packetIds.readPacket(provider
+					.getInputStream(new ByteArrayInputStream(data, offset,
+							length)), unbundler);
+		} finally {
+			bufferPool.release(frame);
+		}
+	}
+
+	/**
+	 * Gives up a frame that is no longer needed, returning it to the pool or,
+	 * if it maps a reassembler's spool file, releasing the mapping.
+	 * 
+	 * @param frame
+	 *            the frame's buffer.
+	 */
+	protected void releaseFrame(ByteBuffer frame) {
+		if (frame.hasArray())
+			bufferPool.release(frame);
+		else
+			ChunkReassembler.unmap(frame);
+	}
+
+	/**
+	 * Decodes a frame that has no accessible array, such as a reassembled
+	 * packet mapped from its spool file.
+	 * 
+	 * @param in
+	 *            the frame's bytes.
+	 * @return the decoded packet, or null if it was a bundle whose children
+	 *         have already been delivered.
+	 * @throws IOException
+	 *             if the frame could not be decoded.
+	 */
+	protected Packet decodeStream(InputStream in) throws IOException {
+		InputStream packetIn = getPacketInputProvider().getInputStream(in);
+		if (packetIds == null)
+			return PacketIO.readPacket(packetIn);
+		return packetIds.readPacket(packetIn, unbundling ? unbundler : null);
+	}
+
+	protected void shutdown() {
+		running = false;
+		alertDisconnect();
+		flushCoalesced(false);
+		closeWriter();
+		try {
+			if (writeStream != null)
+				writeStream.close();
+		} catch (IOException e) {
+		}
+		try {
+			is.close();
+			os.close();
+			socket.close();
+		} catch (IOException e2) {
+		}
+	}
+
+	/**
+	 * Takes packets off the write queue and writes them through a single
+	 * buffered stream, flushing once per batch. With a linger set, the writer
+	 * waits that long for more packets before flushing a batch. A batch ends
+	 * after the first chunk in it, so packets queued while a chunked packet
+	 * is being written get to go before its next chunk.
+	 */
+	protected void writeLoop() {
+		ArrayList<OutgoingPacket> batch = new ArrayList<OutgoingPacket>(
+				WRITE_BATCH_SIZE);
+		boolean closing = false;
+		while (!closing) {
+			try {
+				OutgoingPacket next = nextChunk(writeQueue.take());
+				batch.add(next);
+				while (batch.size() < WRITE_BATCH_SIZE && next.parent == null
+						&& (next = pollWrite()) != null) {
+					batch.add(next);
+				}
+				if (lingerNanos > 0) {
+					long deadline = System.nanoTime() + lingerNanos;
+					long remaining;
+					while (batch.size() < WRITE_BATCH_SIZE
+							&& next != null && next.parent == null
+							&& batch.get(batch.size() - 1) != OutgoingPacket.CLOSE
+							&& (remaining = deadline - System.nanoTime()) > 0) {
+						next = writeQueue.poll(remaining, TimeUnit.NANOSECONDS);
+						if (next == null)
+							break;
+						next = nextChunk(next);
+						batch.add(next);
+						while (batch.size() < WRITE_BATCH_SIZE
+								&& next.parent == null
+								&& (next = pollWrite()) != null) {
+							batch.add(next);
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				continue;
+			}
+			int close = batch.indexOf(OutgoingPacket.CLOSE);
+			if (close >= 0) {
+				closing = true;
+				failWrites(new ArrayList<OutgoingPacket>(batch.subList(
+						close + 1, batch.size())), new IOException(
+						"Connection closed"));
+				batch.subList(close, batch.size()).clear();
+			}
+			long bytes = 0;
+			try {
+				if (writeChannel != null) {
+					writeGathering(batch);
+				} else {
+					for (OutgoingPacket packet : batch) {
+						if (packet.header != null)
+							write(packet.header);
+						write(packet.data);
+					}
+					writeStream.flush();
+				}
+				for (OutgoingPacket packet : batch) {
+					bytes += packet.length;
+				}
+			} catch (IOException e) {
+				if (metrics != null)
+					metrics.writeError();
+				failWrites(batch, e);
+				closing = true;
+				stop();
+				continue;
+			}
+			for (OutgoingPacket packet : batch) {
+				completeWrite(packet);
+			}
+			written(bytes);
+			batch.clear();
+		}
+		failWrites(new IOException("Connection closed"));
+	}
+
+	/**
+	 * Writes a buffer to the write stream, copying it through a reused array
+	 * if it has no accessible one of its own.
+	 * 
+	 * @param data
+	 *            the bytes to write.
+	 * @throws IOException
+	 */
+	protected void write(ByteBuffer data) throws IOException {
+		if (data.hasArray()) {
+			writeStream.write(data.array(),
+					data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+		if (copyBuffer == null)
+			copyBuffer = new byte[WRITE_BUFFER_SIZE];
+		data = data.duplicate();
+		while (data.hasRemaining()) {
+			int length = Math.min(data.remaining(), copyBuffer.length);
+			data.get(copyBuffer, 0, length);
+			writeStream.write(copyBuffer, 0, length);
+		}
+	}
+
+	/**
+	 * Writes a batch to the socket's channel in gathering writes, so direct
+	 * buffers go to the socket without being copied.
+	 * 
+	 * @param batch
+	 *            the packets to write.
+	 * @throws IOException
+	 */
+	protected void writeGathering(ArrayList<OutgoingPacket> batch)
+			throws IOException {
+		if (writeBuffers == null)
+			writeBuffers = new ByteBuffer[WRITE_BATCH_SIZE * 2];
+		int count = 0;
+		for (OutgoingPacket packet : batch) {
+			if (packet.header != null)
+				writeBuffers[count++] = packet.header.duplicate();
+			writeBuffers[count++] = packet.data.duplicate();
+		}
+		try {
+			int first = 0;
+			while (first < count) {
+				long wrote = writeChannel.write(writeBuffers, first, count
+						- first);
+				if (metrics != null)
+					metrics.bytesWritten(wrote);
+				while (first < count && !writeBuffers[first].hasRemaining())
+					first++;
+			}
+		} finally {
+			for (int i = 0; i < count; i++) {
+				writeBuffers[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Takes the next packet off the write queue, or the next chunk of it if
+	 * it is too large to go out in one piece. Only the writer may call this.
+	 * 
+	 * @return the packet or chunk to write next, or null if the queue is
+	 *         empty.
+	 */
+	protected OutgoingPacket pollWrite() {
+		OutgoingPacket packet = writeQueue.poll();
+		return packet != null ? nextChunk(packet) : null;
+	}
+
+	/**
+	 * Cuts the next chunk off a packet taken from the write queue if chunking
+	 * is on and the packet is larger than the chunk size, putting the rest of
+	 * the packet back at the front of its lane.
+	 * 
+	 * @param packet
+	 *            the packet taken from the write queue.
+	 * @return the packet itself, or its next chunk.
+	 */
+	protected OutgoingPacket nextChunk(OutgoingPacket packet) {
+		int frameHeader = 0;
+		if (packet.unchunked == null) {
+			if (packet == OutgoingPacket.CLOSE || chunkSize <= 0
+					|| packet.length <= chunkSize || !isChunking())
+				return packet;
+			ByteBuffer payload = packet.data.duplicate();
+			try {
+				PacketIO.readVarInt(payload);
+			} catch (IOException e) {
+				return packet;
+			}
+			frameHeader = payload.position() - packet.data.position();
+			packet.unchunked = payload;
+			packet.transferId = nextTransferId;
+			nextTransferId = nextTransferId + 1 & Integer.MAX_VALUE;
+		}
+		ByteBuffer rest = packet.unchunked;
+		int length = Math.min(chunkSize, rest.remaining());
+		ByteBuffer data = rest.duplicate();
+		data.limit(data.position() + length);
+		rest.position(rest.position() + length);
+		boolean last = !rest.hasRemaining();
+		int header = length << 1 | (last ? 1 : 0);
+		ByteBuffer headerBuffer = ByteBuffer.allocate(1
+				+ PacketIO.varIntSize(packet.transferId)
+				+ PacketIO.varIntSize(header));
+		PacketIO.writeVarInt(headerBuffer, 0);
+		PacketIO.writeVarInt(headerBuffer, packet.transferId);
+		PacketIO.writeVarInt(headerBuffer, header);
+		headerBuffer.flip();
+		OutgoingPacket chunk = new OutgoingPacket(data, null);
+		chunk.header = headerBuffer;
+		chunk.parent = packet;
+		chunk.lastChunk = last;
+		// the first chunk also counts the packet's frame header, so the
+		// chunks add up to the length queued
+		chunk.length = length + frameHeader;
+		if (!last)
+			writeQueue.addFirst(packet, packet.lane);
+		return chunk;
+	}
+
+	protected void completeWrite(OutgoingPacket packet) {
+		if (packet.parent != null) {
+			if (packet.lastChunk)
+				completeWrite(packet.parent);
+			return;
+		}
+		packet.release();
+		if (packet.future != null)
+			packet.future.complete();
+	}
+
+	/**
+	 * Marks bytes as written, letting senders blocked on the high-water mark
+	 * continue. This is called on the thread doing the writing, so packets
+	 * held back by coalescing are left for the dispatcher to flush once the
+	 * queue has drained.
+	 * 
+	 * @param bytes
+	 *            the number of queued bytes that were written.
+	 */
+	protected void written(long bytes) {
+		boolean flush;
+		synchronized (sendLock) {
+			queuedBytes -= bytes;
+			flush = queuedBytes == 0 && holdingCoalesced;
+			sendLock.notifyAll();
+		}
+		if (flush && flushRequested.compareAndSet(false, true))
+			wakeDispatcher();
+	}
+
+	/**
+	 * Stops accepting packets for writing and fails the futures of every
+	 * packet that is still queued.
+	 * 
+	 * @param cause
+	 *            the reason the packets could not be written.
+	 */
+	protected void failWrites(IOException cause) {
+		synchronized (sendLock) {
+			writerClosed = true;
+			sendLock.notifyAll();
+		}
+		ArrayList<OutgoingPacket> pending = new ArrayList<OutgoingPacket>();
+		writeQueue.drainTo(pending);
+		failWrites(pending, cause);
+		synchronized (coalesceLock) {
+			for (SendFuture future : coalescedFutures) {
+				if (future != null)
+					future.fail(cause);
+			}
+			coalesced.clear();
+			coalescedFutures.clear();
+		}
+	}
+
+	protected void failWrites(ArrayList<OutgoingPacket> packets,
+			IOException cause) {
+		for (OutgoingPacket packet : packets) {
+			if (packet.parent != null) {
+				// earlier chunks leave the rest of their packet queued
+				if (!packet.lastChunk)
+					continue;
+				packet = packet.parent;
+			}
+			packet.release();
+			if (packet.future != null)
+				packet.future.fail(cause);
+		}
+	}
+
+	/**
+	 * Asks the writer to finish the packets already queued and waits up to
+	 * {@link #CLOSE_TIMEOUT_MILLIS} for it to do so.
+	 */
+	protected void closeWriter() {
+		writeQueue.add(OutgoingPacket.CLOSE, PacketPriority.LOW.ordinal());
+		if (writer != null && writer != Thread.currentThread()) {
+			try {
+				writer.join(CLOSE_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+			}
 		}
-		return this;
 	}
 
 	protected void alertDisconnect() {
@@ -179,27 +1360,1403 @@ public class PacketConnection {
 		}
 	}
 
-	protected void alertListeners(Packet packet) {
-		for (PacketListener listener : listeners) {
-			listener.onReceivePacket(packet.name, packet);
+	/**
+	 * Hands a packet to its listeners, or to their lanes if listeners are run
+	 * on an executor. A packet waiting in lanes counts as queued against the
+	 * inbound limits until every listener has been handed it.
+	 * 
+	 * @param packet
+	 *            the packet to dispatch.
+	 * @param bytes
+	 *            the packet's encoded size, or 0 if unknown.
+	 */
+	protected void alertListeners(Packet packet, int bytes) {
+		Executor executor = listenerExecutor;
+		if (executor == null) {
+			listeners.get().dispatch(packet);
+			return;
+		}
+		String name = packet.name;
+		PacketListener[] targets = listeners.get().getSharedListeners(name);
+		if (targets.length == 0)
+			return;
+		LaneEntry entry = new LaneEntry(packet, bytes, targets.length);
+		inboundPackets.incrementAndGet();
+		inboundBytes.addAndGet(bytes);
+		ConcurrentHashMap<PacketListener, ListenerLane> forName = lanes
+				.get(name);
+		for (PacketListener listener : targets) {
+			ListenerLane lane = forName != null ? forName.get(listener)
+					: null;
+			if (lane == null || !lane.submit(entry))
+				submitToNewLane(listener, name, executor, entry);
 		}
-		ArrayList<PacketListener> listeners = namedListeners.get(packet.name);
-		if (listeners != null)
-			for (PacketListener listener : listeners) {
-				listener.onReceivePacket(packet.name, packet);
+	}
+
+	/**
+	 * Submits a packet to a listener's lane for a name, creating the lane if
+	 * there is none or the one found has just retired.
+	 */
+	private void submitToNewLane(PacketListener listener, String name,
+			Executor executor, LaneEntry entry) {
+		while (true) {
+			ConcurrentHashMap<PacketListener, ListenerLane> forName = lanes
+					.get(name);
+			if (forName == null) {
+				ConcurrentHashMap<PacketListener, ListenerLane> created = new ConcurrentHashMap<PacketListener, ListenerLane>();
+				forName = lanes.putIfAbsent(name, created);
+				if (forName == null)
+					forName = created;
+			}
+			// lanes retire under the same lock, so a lane found here can't
+			// retire before the packet is in it
+			synchronized (forName) {
+				if (lanes.get(name) != forName)
+					continue;
+				ListenerLane lane = forName.get(listener);
+				if (lane == null) {
+					lane = new ListenerLane(listener, name, executor, forName);
+					forName.put(listener, lane);
+				}
+				lane.submit(entry);
+				return;
 			}
+		}
+	}
+
+	/**
+	 * Stops counting a packet that every listener's lane has handed on.
+	 * 
+	 * @param bytes
+	 *            the packet's encoded size.
+	 */
+	protected void laneTaken(int bytes) {
+		inboundPackets.decrementAndGet();
+		inboundBytes.addAndGet(-bytes);
+		onInboundDrained();
 	}
 
 	public void stop() {
 		disconnect = true;
+		wakeDispatcher();
+		onInboundDrained();
 	}
 
 	public Socket getSocket() {
 		return socket;
 	}
 
+	/**
+	 * Sets the features this connection asks for in a handshake when it is
+	 * started. Use this on the client side of a connection whose server has
+	 * matching {@link #setSupportedFeatures(int)}.
+	 * 
+	 * @param features
+	 *            a combination of the FEATURE_ flags.
+	 */
+	public void setRequestedFeatures(int features) {
+		requestedFeatures = features;
+	}
+
+	public int getRequestedFeatures() {
+		return requestedFeatures;
+	}
+
+	/**
+	 * Sets the features this connection agrees to if its peer opens with a
+	 * handshake. Use this on the server side of a connection.
+	 * 
+	 * @param features
+	 *            a combination of the FEATURE_ flags.
+	 */
+	public void setSupportedFeatures(int features) {
+		supportedFeatures = features;
+	}
+
+	public int getSupportedFeatures() {
+		return supportedFeatures;
+	}
+
+	/**
+	 * @return the features agreed on in the handshake, or 0 if there was none.
+	 */
+	public int getNegotiatedFeatures() {
+		return negotiatedFeatures;
+	}
+
+	public Executor getListenerExecutor() {
+		return listenerExecutor;
+	}
+
+	/**
+	 * Sets the executor packet listeners are run on. Each listener gets its
+	 * own lane for each packet name, which hands it that name's packets one
+	 * at a time and in the order they were received, so a slow listener only
+	 * holds up its own lanes. Different names may reach the same listener at
+	 * the same time, so listeners used with an executor must be thread-safe.
+	 * The executor can be shared by any number of connections. Must be set
+	 * before the connection is started.
+	 * <p>
+	 * Packets waiting in lanes count against the inbound limits until every
+	 * listener has been handed them. A lane is retired once it has drained
+	 * and created again when its next packet arrives, so only lanes with
+	 * work in them are kept.
+	 * 
+	 * @param listenerExecutor
+	 *            the executor to run listeners on, or null to run them on the
+	 *            connection's dispatch thread.
+	 */
+	public void setListenerExecutor(Executor listenerExecutor) {
+		this.listenerExecutor = listenerExecutor;
+	}
+
+	/**
+	 * @param listener
+	 *            a packet listener.
+	 * @return the number of packets waiting in the lanes of listener to be
+	 *         handed to it.
+	 */
+	public int getListenerQueueDepth(PacketListener listener) {
+		int depth = 0;
+		for (ConcurrentHashMap<PacketListener, ListenerLane> forName : lanes
+				.values()) {
+			ListenerLane lane = forName.get(listener);
+			if (lane != null)
+				depth += lane.getQueueDepth();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return the number of packets waiting for each listener with a lane.
+	 */
+	public Map<PacketListener, Integer> getListenerQueueDepths() {
+		HashMap<PacketListener, Integer> depths = new HashMap<PacketListener, Integer>();
+		for (ConcurrentHashMap<PacketListener, ListenerLane> forName : lanes
+				.values()) {
+			for (ListenerLane lane : forName.values()) {
+				Integer depth = depths.get(lane.listener);
+				depths.put(lane.listener, (depth != null ? depth : 0)
+						+ lane.getQueueDepth());
+			}
+		}
+		return depths;
+	}
+
+	public int getInboundPacketLimit() {
+		return inboundPacketLimit;
+	}
+
+	public long getInboundByteLimit() {
+		return inboundByteLimit;
+	}
+
+	/**
+	 * Limits how many received packets may wait for the listeners. When a
+	 * packet arrives with the queue at either limit, the inbound policy
+	 * decides what happens. Bytes are only counted on framed connections.
+	 * Packets waiting in the lanes of a listener executor count as queued;
+	 * chunks of packets still being reassembled don't, and are limited by
+	 * {@link #setReassemblyLimit(long)} instead.
+	 * 
+	 * @param packets
+	 *            the most packets that may be queued, or 0 for no limit.
+	 * @param bytes
+	 *            the most encoded bytes that may be queued, or 0 for no limit.
+	 */
+	public void setInboundLimits(int packets, long bytes) {
+		inboundPacketLimit = packets;
+		inboundByteLimit = bytes;
+	}
+
+	public InboundPolicy getInboundPolicy() {
+		return inboundPolicy;
+	}
+
+	/**
+	 * Sets what happens to received packets that arrive while the inbound
+	 * queue is at its limits. Defaults to {@link InboundPolicy#BLOCK}.
+	 * 
+	 * @param inboundPolicy
+	 *            the policy to use.
+	 */
+	public void setInboundPolicy(InboundPolicy inboundPolicy) {
+		this.inboundPolicy = inboundPolicy;
+	}
+
+	/**
+	 * @return the number of encoded bytes waiting to be dispatched.
+	 */
+	public long getInboundBytes() {
+		return inboundBytes.get();
+	}
+
+	/**
+	 * @return the number of received packets dropped because the inbound
+	 *         queue was full.
+	 */
+	public long getDroppedPacketCount() {
+		return droppedPackets.get();
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Sets the factory this connection's reader and dispatcher threads are
+	 * created with, e.g. {@link PacketThreads#virtualThreadFactory()}. Must be
+	 * set before the connection is started.
+	 * 
+	 * @param threadFactory
+	 *            the factory to use, or null for plain platform threads.
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	public long getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * Sets how many encoded bytes may wait to be written before
+	 * {@link #sendPacket(Packet)} and {@link #sendPacketAsync(Packet)} block.
+	 * 
+	 * @param highWaterMark
+	 *            the limit in bytes.
+	 */
+	public void setHighWaterMark(long highWaterMark) {
+		this.highWaterMark = highWaterMark;
+	}
+
+	public int getCoalesceLimit() {
+		return coalesceLimit;
+	}
+
+	public long getCoalesceWindow(TimeUnit unit) {
+		return unit.convert(coalesceWindowNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Turns on Nagle-style coalescing of sent packets. A packet sent while the
+	 * write queue is empty goes out on its own straight away, but packets sent
+	 * while earlier ones are still being written are held back and sent
+	 * together in one BundlePacket named {@link #COALESCED_BUNDLE_NAME} as
+	 * soon as the queue drains, once maxPackets are held, or when a packet is
+	 * sent after the oldest held one has waited longer than window. Only
+	 * takes effect once {@link #FEATURE_COALESCING} has been agreed on in the
+	 * handshake, so a peer that doesn't unbundle coalesced packets never sees
+	 * a bundle; the receiver unbundles them before its listeners see them.
+	 * <p>
+	 * With coalescing on, sent packets are encoded one at a time.
+	 * {@link PacketPriority#HIGH} packets are never held back, and a bundle is
+	 * sent with the highest priority of the packets in it.
+	 * 
+	 * @param maxPackets
+	 *            the most packets sent in one bundle, or 1 or less to turn
+	 *            coalescing off.
+	 * @param window
+	 *            the longest a packet is held back while more are sent.
+	 * @param unit
+	 *            the unit of window.
+	 */
+	public void setCoalescing(int maxPackets, long window, TimeUnit unit) {
+		coalesceWindowNanos = unit.toNanos(window);
+		coalesceLimit = maxPackets;
+		if (maxPackets <= 1)
+			flushCoalesced();
+	}
+
+	public long getLinger(TimeUnit unit) {
+		return unit.convert(lingerNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets how long the writer waits for more packets before flushing a
+	 * batch. Trades a little latency for fewer, larger writes. Defaults to 0,
+	 * flushing as soon as the queue is empty.
+	 * 
+	 * @param linger
+	 *            the time to wait.
+	 * @param unit
+	 *            the unit of linger.
+	 */
+	public void setLinger(long linger, TimeUnit unit) {
+		lingerNanos = unit.toNanos(linger);
+	}
+
+	public PacketPriorities getPriorities() {
+		return priorities;
+	}
+
+	/**
+	 * Sets the table the priorities of sent and received packets are looked
+	 * up in. Connections accepted by a server share the server's table.
+	 * 
+	 * @param priorities
+	 *            the table to use.
+	 */
+	public void setPriorities(PacketPriorities priorities) {
+		this.priorities = priorities;
+	}
+
+	/**
+	 * Sets the priority of packets with a name in this connection's
+	 * priority table.
+	 * 
+	 * @param name
+	 *            the packet name.
+	 * @param priority
+	 *            the priority, or null to remove it.
+	 * @see PacketPriorities#setPriority(String, PacketPriority)
+	 */
+	public void setPriority(String name, PacketPriority priority) {
+		priorities.setPriority(name, priority);
+	}
+
+	/**
+	 * Sets the priority of packets written by a provider in this
+	 * connection's priority table.
+	 * 
+	 * @param provider
+	 *            the packet info provider.
+	 * @param priority
+	 *            the priority, or null to remove it.
+	 * @see PacketPriorities#setPriority(PacketInfoProvider, PacketPriority)
+	 */
+	public void setPriority(PacketInfoProvider provider,
+			PacketPriority priority) {
+		priorities.setPriority(provider, priority);
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Sets the size of the chunks large packets are split into, so packets
+	 * of a higher priority don't have to wait for a whole large packet to be
+	 * written. Only takes effect once {@link #FEATURE_CHUNKING} has been
+	 * agreed on in the handshake; each end chunks the packets it sends with
+	 * its own chunk size.
+	 * 
+	 * @param chunkSize
+	 *            the most packet bytes sent in one chunk, or 0 to send every
+	 *            packet whole.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public long getReassemblyLimit() {
+		return reassembler.getMemoryLimit();
+	}
+
+	/**
+	 * Limits the heap held by received chunked packets that are still being
+	 * reassembled. A packet whose next chunk would go over the limit is
+	 * spooled to a temporary file if a spool directory has been set, and
+	 * dropped otherwise. Defaults to
+	 * {@link ChunkReassembler#DEFAULT_MEMORY_LIMIT}. Must be set before the
+	 * connection is started.
+	 * 
+	 * @param bytes
+	 *            the most bytes held by packets being reassembled.
+	 */
+	public void setReassemblyLimit(long bytes) {
+		reassembler.setMemoryLimit(bytes);
+	}
+
+	public long getSpoolLimit() {
+		return reassembler.getSpoolLimit();
+	}
+
+	/**
+	 * Limits the size of all the spool files of received chunked packets
+	 * being reassembled. A spooled packet whose next chunk would go over the
+	 * limit is dropped. Defaults to
+	 * {@link ChunkReassembler#DEFAULT_SPOOL_LIMIT}. Must be set before the
+	 * connection is started.
+	 * 
+	 * @param bytes
+	 *            the most bytes held in spool files.
+	 * @see #setSpoolDirectory(File)
+	 */
+	public void setSpoolLimit(long bytes) {
+		reassembler.setSpoolLimit(bytes);
+	}
+
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	/**
+	 * Limits the size of the frames, and of the chunks of chunked packets,
+	 * this connection accepts from its peer. A peer sending a larger frame is
+	 * disconnected, so a peer sending bigger packets must send them in
+	 * chunks. Defaults to {@link #DEFAULT_MAX_FRAME_LENGTH} and can't be
+	 * raised above {@link PacketIO#MAX_FRAME_LENGTH}. Must be set before the
+	 * connection is started.
+	 * 
+	 * @param bytes
+	 *            the largest frame accepted.
+	 */
+	public void setMaxFrameLength(int bytes) {
+		maxFrameLength = bytes;
+	}
+
+	public int getTransferLimit() {
+		return reassembler.getTransferLimit();
+	}
+
+	/**
+	 * Limits how many received chunked packets may be reassembled at once,
+	 * counting dropped ones until their last chunk has arrived. A peer
+	 * starting a packet beyond the limit is disconnected. Defaults to
+	 * {@link ChunkReassembler#DEFAULT_TRANSFER_LIMIT}. Must be set before the
+	 * connection is started.
+	 * 
+	 * @param transfers
+	 *            the most packets being reassembled at once.
+	 */
+	public void setTransferLimit(int transfers) {
+		reassembler.setTransferLimit(transfers);
+	}
+
+	public File getSpoolDirectory() {
+		return reassembler.getSpoolDirectory();
+	}
+
+	/**
+	 * Sets where received chunked packets over the reassembly limit are
+	 * spooled. Spooled packets are memory-mapped from their file once they
+	 * are complete, so they are decoded without being copied onto the heap.
+	 * Must be set before the connection is started.
+	 * 
+	 * @param directory
+	 *            the directory to create spool files in, or null to drop
+	 *            packets over the limit instead.
+	 * @see #setReassemblyLimit(long)
+	 */
+	public void setSpoolDirectory(File directory) {
+		reassembler.setSpoolDirectory(directory);
+	}
+
+	/**
+	 * @return the heap, in bytes, held by received chunked packets that are
+	 *         still being reassembled.
+	 */
+	public long getReassemblyBytes() {
+		return reassembler.getHeldBytes();
+	}
+
+	/**
+	 * @return the number of encoded bytes waiting to be written.
+	 */
+	public long getQueuedBytes() {
+		synchronized (sendLock) {
+			return queuedBytes;
+		}
+	}
+
+	public ByteBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	public void setBufferPool(ByteBufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+		reassembler.setPool(bufferPool);
+	}
+
+	public boolean isFramed() {
+		return framed;
+	}
+
+	/**
+	 * Sets whether packets are sent and received as length-prefixed frames.
+	 * Both ends of a connection must agree on this, and it must be set before
+	 * the connection is started.
+	 * 
+	 * @param framed
+	 *            whether to use length-prefixed frames.
+	 */
+	public void setFramed(boolean framed) {
+		this.framed = framed;
+		wireFormat = null;
+	}
+
+	/**
+	 * @return the packet IDs agreed on in the handshake, or null if packets
+	 *         carry their IDs as strings.
+	 */
+	public CompactPacketIds getPacketIds() {
+		return packetIds;
+	}
+
+	public boolean isUnbundling() {
+		return unbundling;
+	}
+
+	/**
+	 * Sets whether the packets in received bundles are handed to listeners
+	 * one at a time, as each is decoded, instead of as a BundlePacket. Only
+	 * takes effect for framed connections with {@link #FEATURE_COMPACT_IDS},
+	 * whose bundles use the compact bundle encoding.
+	 * 
+	 * @param unbundling
+	 *            whether to unbundle received bundles.
+	 */
+	public void setUnbundling(boolean unbundling) {
+		this.unbundling = unbundling;
+	}
+
+	public boolean isLazyDecoding() {
+		return lazyDecoding;
+	}
+
+	/**
+	 * Sets whether received AdvancedPackets and SimplePackets keep their
+	 * encoded data and only decode it when
+	 * {@link AdvancedPacket#getData()} or {@link SimplePacket#getData()} is
+	 * first called, so packets that listeners skip by name are never fully
+	 * decoded. Listeners must use getData() instead of the data field. Only
+	 * takes effect on framed connections with
+	 * {@link #FEATURE_COMPACT_IDS} and no per-packet compression.
+	 * 
+	 * @param lazyDecoding
+	 *            whether to decode packet data lazily.
+	 */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	public long getHandshakeTimeout(TimeUnit unit) {
+		return unit.convert(handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets how long a server waits for its client to open the feature
+	 * handshake before falling back to no features, and how long a client
+	 * waits for the server's reply. A client that starts the handshake has to
+	 * finish it within this time too. Sends wait for the handshake, so this
+	 * also bounds how long a greeting sent straight after accepting a
+	 * connection is held up. Must be set before the connection is started.
+	 * 
+	 * @param timeout
+	 *            the time to wait, or 0 to wait forever.
+	 * @param unit
+	 *            the unit of timeout.
+	 */
+	public void setHandshakeTimeout(long timeout, TimeUnit unit) {
+		handshakeTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * @return whether the feature handshake, if any, has finished.
+	 */
+	public boolean isHandshakeDone() {
+		return handshakeDone.getCount() == 0;
+	}
+
+	/**
+	 * Gets the format this connection sends packets in, waiting for the
+	 * feature handshake to finish first.
+	 * 
+	 * @return the connection's wire format.
+	 * @throws IOException
+	 */
+	public WireFormat getWireFormat() throws IOException {
+		awaitHandshake();
+		WireFormat format = wireFormat;
+		if (format == null)
+			wireFormat = format = new WireFormat(framed,
+					getPacketOutputProvider(), packetIds);
+		return format;
+	}
+
+	/**
+	 * @return the provider each packet is encoded through on its own. This is
+	 *         a pass-through provider if the output provider wraps the whole
+	 *         connection instead.
+	 */
+	protected OutputStreamProvider getPacketOutputProvider() {
+		if (osProvider instanceof ConnectionOutputStreamProvider)
+			return ThroughOutputStreamProvider.INSTANCE;
+		return osProvider;
+	}
+
+	/**
+	 * @return the provider each packet is decoded through on its own. This is
+	 *         a pass-through provider if the input provider wraps the whole
+	 *         connection instead.
+	 */
+	protected InputStreamProvider getPacketInputProvider() {
+		if (isProvider instanceof ConnectionInputStreamProvider)
+			return ThroughInputStreamProvider.INSTANCE;
+		return isProvider;
+	}
+
+	/**
+	 * @return the number of packets waiting to be dispatched.
+	 */
+	public int getQueuedPacketCount() {
+		return packetQueue.size();
+	}
+
+	/**
+	 * @return the number of packets handed to listeners so far.
+	 */
+	public long getDispatchedPacketCount() {
+		return dispatchedPackets.get();
+	}
+
+	/**
+	 * @return the average number of packets dispatched per second since this
+	 *         connection was started.
+	 */
+	public double getDispatchThroughput() {
+		if (startTime == 0)
+			return 0;
+		long elapsed = System.nanoTime() - startTime;
+		return elapsed > 0 ? dispatchedPackets.get() * 1e9 / elapsed : 0;
+	}
+
+	/**
+	 * Gets the time packets spend between being read off the wire and being
+	 * handed to listeners.
+	 * 
+	 * @return the hand-off latency histogram, in nanoseconds.
+	 */
+	public LatencyHistogram getHandOffLatency() {
+		return handOffLatency;
+	}
+
+	/**
+	 * @return the 99th percentile hand-off latency, in nanoseconds.
+	 */
+	public long getHandOffLatency99() {
+		return handOffLatency.getPercentile(0.99);
+	}
+
+	/**
+	 * @return the number of packets waiting to be written.
+	 */
+	public int getQueuedWriteCount() {
+		return writeQueue.size();
+	}
+
+	/**
+	 * Turns collection of this connection's {@link ConnectionMetrics} on or
+	 * off. Must be called before the connection is started. While disabled,
+	 * which is the default, recording costs a null check.
+	 * 
+	 * @param enabled
+	 *            whether to collect metrics.
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		if (!enabled)
+			metrics = null;
+		else if (metrics == null)
+			metrics = new ConnectionMetrics(handOffLatency);
+	}
+
+	public boolean isMetricsEnabled() {
+		return metrics != null;
+	}
+
+	/**
+	 * @return the live metrics of this connection, or null if they're
+	 *         disabled.
+	 */
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets a copy of this connection's metrics. Queue depths and hand-off
+	 * latencies are always filled in, the rest only while metrics are
+	 * enabled.
+	 */
+	@Override
+	public MetricsSnapshot getMetricsSnapshot() {
+		ConnectionMetrics m = metrics;
+		if (m == null)
+			m = new ConnectionMetrics(handOffLatency);
+		return m.snapshot(1, getQueuedPacketCount(), getQueuedWriteCount(),
+				getQueuedBytes());
+	}
+
+	/**
+	 * Encodes packet and queues it to be written. This is safe to call from
+	 * any number of threads. It only blocks while the write queue is over the
+	 * high-water mark; write errors close the connection instead of being
+	 * thrown here.
+	 * 
+	 * @param packet
+	 *            the Packet to send.
+	 * @throws IOException
+	 *             if the packet can't be encoded or the connection is closed.
+	 */
 	public void sendPacket(Packet packet) throws IOException {
-		PacketIO.writePacket(osProvider.getOutputStream(os), packet);
-		os.flush();
+		if (isCoalescing()) {
+			coalesce(packet, null);
+			return;
+		}
+		OutgoingPacket out = new OutgoingPacket(encodePacket(packet), null,
+				bufferPool);
+		out.lane = laneOf(packet);
+		enqueue(out);
+		recordSent(packet, out);
+	}
+
+	/**
+	 * Encodes packet and queues it to be written, like
+	 * {@link #sendPacket(Packet)}.
+	 * 
+	 * @param packet
+	 *            the Packet to send.
+	 * @return a future completing once the packet has been written to the
+	 *         socket.
+	 * @throws IOException
+	 *             if the packet can't be encoded or the connection is closed.
+	 */
+	public SendFuture sendPacketAsync(Packet packet) throws IOException {
+		SendFuture future = new SendFuture();
+		if (isCoalescing()) {
+			coalesce(packet, future);
+			return future;
+		}
+		OutgoingPacket out = new OutgoingPacket(encodePacket(packet), future,
+				bufferPool);
+		out.lane = laneOf(packet);
+		enqueue(out);
+		recordSent(packet, out);
+		return future;
+	}
+
+	/**
+	 * @return whether sent packets may be held back and coalesced.
+	 */
+	protected boolean isCoalescing() {
+		return coalesceLimit > 1
+				&& (negotiatedFeatures & FEATURE_COALESCING) != 0;
+	}
+
+	/**
+	 * Sends packet straight away if nothing is waiting to be written or it is
+	 * {@link PacketPriority#HIGH}, otherwise holds it back to be bundled with
+	 * the packets sent after it.
+	 * 
+	 * @param packet
+	 *            the Packet to send.
+	 * @param future
+	 *            the future to complete once written, may be null.
+	 * @throws IOException
+	 *             if a packet can't be encoded or the connection is closed.
+	 */
+	protected void coalesce(Packet packet, SendFuture future)
+			throws IOException {
+		synchronized (coalesceLock) {
+			int lane = laneOf(packet);
+			boolean direct = lane == PacketPriority.HIGH.ordinal();
+			synchronized (sendLock) {
+				if (writerClosed)
+					throw new IOException("Connection closed");
+				if (queuedBytes == 0 && coalesced.isEmpty())
+					direct = true;
+				// set under sendLock, so the writer draining the queue can't
+				// miss that held packets need flushing
+				if (!direct)
+					holdingCoalesced = true;
+			}
+			if (direct) {
+				OutgoingPacket out = new OutgoingPacket(encodePacket(packet),
+						future, bufferPool);
+				out.lane = lane;
+				enqueue(out);
+				recordSent(packet, out);
+				return;
+			}
+			if (coalesced.isEmpty())
+				coalesceDeadline = System.nanoTime() + coalesceWindowNanos;
+			coalesced.add(packet);
+			coalescedFutures.add(future);
+			if (coalesced.size() >= coalesceLimit
+					|| System.nanoTime() - coalesceDeadline >= 0)
+				sendCoalesced(true);
+		}
+	}
+
+	/**
+	 * Sends every packet held back by coalescing, waiting for room in the
+	 * write queue.
+	 */
+	protected void flushCoalesced() {
+		flushCoalesced(true);
+	}
+
+	/**
+	 * Sends every packet held back by coalescing.
+	 * 
+	 * @param block
+	 *            whether to wait for the write queue to drop below the
+	 *            high-water mark. Threads that must not block, like the
+	 *            dispatcher, queue the bundle past the mark instead.
+	 */
+	protected void flushCoalesced(boolean block) {
+		synchronized (coalesceLock) {
+			if (coalesced.isEmpty())
+				return;
+			try {
+				sendCoalesced(block);
+			} catch (IOException e) {
+				for (SendFuture future : coalescedFutures) {
+					if (future != null)
+						future.fail(e);
+				}
+				coalesced.clear();
+				coalescedFutures.clear();
+			}
+		}
+	}
+
+	/**
+	 * Encodes the held back packets into one bundle and queues it. Must be
+	 * called holding coalesceLock.
+	 * 
+	 * @param block
+	 *            whether to wait for the write queue to drop below the
+	 *            high-water mark.
+	 * @throws IOException
+	 *             if the bundle can't be encoded or the connection is closed.
+	 */
+	private void sendCoalesced(boolean block) throws IOException {
+		Packet packet;
+		SendFuture future;
+		int lane = PacketPriority.LOW.ordinal();
+		for (Packet held : coalesced) {
+			lane = Math.min(lane, laneOf(held));
+		}
+		if (coalesced.size() == 1) {
+			packet = coalesced.get(0);
+			future = coalescedFutures.get(0);
+		} else {
+			packet = new BundlePacket(new ArrayList<Packet>(coalesced),
+					COALESCED_BUNDLE_NAME);
+			future = new BundleFuture(new ArrayList<SendFuture>(
+					coalescedFutures));
+		}
+		OutgoingPacket out = new OutgoingPacket(encodePacket(packet), future,
+				bufferPool);
+		out.lane = lane;
+		coalesced.clear();
+		coalescedFutures.clear();
+		synchronized (sendLock) {
+			holdingCoalesced = false;
+		}
+		addToWriteQueue(out, block, !block);
+		recordSent(packet, out);
+	}
+
+	/**
+	 * Sends a pre-encoded packet, queueing its stored bytes for this
+	 * connection's wire format without encoding or copying them again. Blocks
+	 * like {@link #sendPacket(Packet)}.
+	 * 
+	 * @param packet
+	 *            the packet to send.
+	 * @throws IOException
+	 *             if the packet can't be encoded in this connection's wire
+	 *             format or the connection is closed.
+	 */
+	public void sendPacket(EncodedPacket packet) throws IOException {
+		sendEncoded(packet.getPacket(), packet.getData(getWireFormat()), null);
+	}
+
+	/**
+	 * Sends a pre-encoded packet like {@link #sendPacket(EncodedPacket)}.
+	 * 
+	 * @param packet
+	 *            the packet to send.
+	 * @return a future completing once the packet has been written to the
+	 *         socket.
+	 * @throws IOException
+	 *             if the packet can't be encoded in this connection's wire
+	 *             format or the connection is closed.
+	 */
+	public SendFuture sendPacketAsync(EncodedPacket packet) throws IOException {
+		SendFuture future = new SendFuture();
+		sendEncoded(packet.getPacket(), packet.getData(getWireFormat()),
+				future);
+		return future;
+	}
+
+	/**
+	 * Encodes packet the way this connection sends it: framed or not, and
+	 * through the output stream provider.
+	 * 
+	 * @param packet
+	 *            the Packet to encode.
+	 * @return a buffer from the connection's pool holding the encoded packet.
+	 * @throws IOException
+	 */
+	protected ByteBuffer encodePacket(Packet packet) throws IOException {
+		return getWireFormat().encode(packet, bufferPool);
+	}
+
+	/**
+	 * Queues an already encoded packet without waiting for room in the write
+	 * queue. The data must have been encoded in this connection's
+	 * {@link #getWireFormat()} and must not be modified afterwards; it may be
+	 * shared with other connections.
+	 * 
+	 * @param data
+	 *            the encoded packet.
+	 * @param future
+	 *            the future to complete once written, may be null.
+	 * @return false if the write queue is over the high-water mark and nothing
+	 *         was queued.
+	 * @throws IOException
+	 *             if the connection is closed.
+	 */
+	public boolean offerEncoded(ByteBuffer data, SendFuture future)
+			throws IOException {
+		return offerEncoded(null, data, future);
+	}
+
+	/**
+	 * Queues an already encoded packet like
+	 * {@link #offerEncoded(ByteBuffer, SendFuture)}, counting it in the
+	 * metrics under the given packet's name and ID.
+	 * 
+	 * @param packet
+	 *            the packet data was encoded from, may be null.
+	 * @param data
+	 *            the encoded packet.
+	 * @param future
+	 *            the future to complete once written, may be null.
+	 * @return false if the write queue is over the high-water mark and nothing
+	 *         was queued.
+	 * @throws IOException
+	 *             if the connection is closed.
+	 */
+	public boolean offerEncoded(Packet packet, ByteBuffer data,
+			SendFuture future) throws IOException {
+		flushCoalesced(false);
+		OutgoingPacket out = new OutgoingPacket(data.duplicate(), future);
+		out.lane = laneOf(packet);
+		if (!tryEnqueue(out))
+			return false;
+		recordSent(packet, out);
+		return true;
+	}
+
+	/**
+	 * Queues an already encoded packet like
+	 * {@link #offerEncoded(ByteBuffer, SendFuture)}, but waits for room in the
+	 * write queue.
+	 * 
+	 * @param data
+	 *            the encoded packet.
+	 * @param future
+	 *            the future to complete once written, may be null.
+	 * @throws IOException
+	 *             if the connection is closed or the wait is interrupted.
+	 */
+	public void sendEncoded(ByteBuffer data, SendFuture future)
+			throws IOException {
+		sendEncoded(null, data, future);
+	}
+
+	/**
+	 * Queues an already encoded packet like
+	 * {@link #sendEncoded(ByteBuffer, SendFuture)}, counting it in the metrics
+	 * under the given packet's name and ID.
+	 * 
+	 * @param packet
+	 *            the packet data was encoded from, may be null.
+	 * @param data
+	 *            the encoded packet.
+	 * @param future
+	 *            the future to complete once written, may be null.
+	 * @throws IOException
+	 *             if the connection is closed or the wait is interrupted.
+	 */
+	public void sendEncoded(Packet packet, ByteBuffer data, SendFuture future)
+			throws IOException {
+		flushCoalesced();
+		OutgoingPacket out = new OutgoingPacket(data.duplicate(), future);
+		out.lane = laneOf(packet);
+		enqueue(out);
+		recordSent(packet, out);
+	}
+
+	/**
+	 * Counts a queued packet in the metrics, if they're enabled.
+	 * 
+	 * @param packet
+	 *            the packet that was queued, may be null.
+	 * @param out
+	 *            its encoded form.
+	 */
+	protected void recordSent(Packet packet, OutgoingPacket out) {
+		ConnectionMetrics metrics = this.metrics;
+		if (metrics != null)
+			metrics.packetSent(packet, out.length);
+	}
+
+	/**
+	 * Adds a packet to the write queue, first waiting for the queue to drop
+	 * below the high-water mark.
+	 * 
+	 * @param packet
+	 *            the encoded packet.
+	 * @throws IOException
+	 *             if the connection is closed or the wait is interrupted.
+	 */
+	protected void enqueue(OutgoingPacket packet) throws IOException {
+		addToWriteQueue(packet, true, false);
+	}
+
+	/**
+	 * Adds a packet to the write queue if it is below the high-water mark.
+	 * 
+	 * @param packet
+	 *            the encoded packet.
+	 * @return whether the packet was queued.
+	 * @throws IOException
+	 *             if the connection is closed.
+	 */
+	protected boolean tryEnqueue(OutgoingPacket packet) throws IOException {
+		return addToWriteQueue(packet, false, false);
+	}
+
+	/**
+	 * @param block
+	 *            whether to wait for the queue to drop below the high-water
+	 *            mark.
+	 * @param force
+	 *            whether to queue the packet past the high-water mark rather
+	 *            than waiting or giving up.
+	 */
+	private boolean addToWriteQueue(OutgoingPacket packet, boolean block,
+			boolean force) throws IOException {
+		synchronized (sendLock) {
+			if (!force && !block && queuedBytes > highWaterMark
+					&& !writerClosed)
+				return false;
+			while (!force && queuedBytes > highWaterMark && !writerClosed) {
+				try {
+					sendLock.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException(
+							"Interrupted waiting for the write queue");
+				}
+			}
+			if (writerClosed)
+				throw new IOException("Connection closed");
+			queuedBytes += packet.length;
+			writeQueue.add(packet, packet.lane);
+		}
+		onWriteQueued();
+		return true;
+	}
+
+	/**
+	 * Called after a packet has been added to the write queue.
+	 */
+	protected void onWriteQueued() {
+	}
+
+	/**
+	 * Reads the handshake, shortening the socket's timeout before each read
+	 * so the handshake as a whole can't take longer than the handshake
+	 * timeout however slowly the peer sends it.
+	 * 
+	 * @author kneelawk
+	 *
+	 */
+	protected class HandshakeInputStream extends FilterInputStream {
+		protected long deadline;
+
+		public HandshakeInputStream(InputStream in, long deadline) {
+			super(in);
+			this.deadline = deadline;
+		}
+
+		@Override
+		public int read() throws IOException {
+			setTimeout();
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			setTimeout();
+			return super.read(b, off, len);
+		}
+
+		protected void setTimeout() throws IOException {
+			if (handshakeTimeoutMillis <= 0)
+				return;
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline
+					- System.nanoTime());
+			if (remaining <= 0)
+				throw new SocketTimeoutException("Handshake timed out");
+			socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remaining));
+		}
+	}
+
+	/**
+	 * A packet, or a frame still to be decoded, waiting in the dispatch queue
+	 * along with the time it was queued.
+	 * 
+	 * @author kneelawk
+	 *
+	 */
+	protected static class QueuedPacket {
+		/**
+		 * An empty entry used to wake the dispatcher.
+		 */
+		public static final QueuedPacket WAKE_UP = new QueuedPacket(
+				(Packet) null);
+
+		public Packet packet;
+		public ByteBuffer frame;
+		public int bytes;
+		public long queueTime;
+
+		public QueuedPacket(Packet packet) {
+			this.packet = packet;
+			queueTime = System.nanoTime();
+		}
+
+		/**
+		 * @param frame
+		 *            a pooled buffer holding an undecoded frame.
+		 */
+		public QueuedPacket(ByteBuffer frame) {
+			this.frame = frame;
+			bytes = frame.remaining();
+			queueTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * A packet waiting in the lanes of one or more listeners.
+	 * 
+	 * @author kneelawk
+	 *
+	 */
+	protected static class LaneEntry {
+		public final Packet packet;
+		public final int bytes;
+		protected AtomicInteger remaining;
+
+		public LaneEntry(Packet packet, int bytes, int lanes) {
+			this.packet = packet;
+			this.bytes = bytes;
+			remaining = new AtomicInteger(lanes);
+		}
+	}
+
+	/**
+	 * Hands one listener the packets of one name, one at a time and in order,
+	 * on an executor shared with other lanes. A lane that has drained removes
+	 * itself from the lanes of its name and takes no more packets, so a lane
+	 * created after it can't run alongside it.
+	 * 
+	 * @author kneelawk
+	 *
+	 */
+	protected class ListenerLane implements Runnable {
+		public final PacketListener listener;
+		public final String name;
+		protected Executor executor;
+		protected ConcurrentHashMap<PacketListener, ListenerLane> forName;
+		protected ConcurrentLinkedQueue<LaneEntry> queue = new ConcurrentLinkedQueue<LaneEntry>();
+		protected AtomicInteger depth = new AtomicInteger();
+		protected AtomicBoolean scheduled = new AtomicBoolean();
+		protected boolean retired = false;
+
+		public ListenerLane(PacketListener listener, String name,
+				Executor executor,
+				ConcurrentHashMap<PacketListener, ListenerLane> forName) {
+			this.listener = listener;
+			this.name = name;
+			this.executor = executor;
+			this.forName = forName;
+		}
+
+		/**
+		 * @param entry
+		 *            the packet to hand to the listener.
+		 * @return false if the lane has retired and the packet must go to a
+		 *         new one.
+		 */
+		public boolean submit(LaneEntry entry) {
+			synchronized (this) {
+				if (retired)
+					return false;
+				queue.add(entry);
+				depth.incrementAndGet();
+			}
+			schedule();
+			return true;
+		}
+
+		public int getQueueDepth() {
+			return depth.get();
+		}
+
+		protected void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					// the executor is shutting down, finish up on this thread
+					run();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				LaneEntry entry;
+				for (int i = 0; i < LANE_BATCH_SIZE
+						&& (entry = queue.poll()) != null; i++) {
+					depth.decrementAndGet();
+					try {
+						listener.onReceivePacket(name, entry.packet);
+					} finally {
+						if (entry.remaining.decrementAndGet() == 0)
+							laneTaken(entry.bytes);
+					}
+				}
+			} finally {
+				// retiring while still scheduled, so no other run of this
+				// lane can be handing the listener a packet
+				if (!retire()) {
+					scheduled.set(false);
+					if (!queue.isEmpty())
+						schedule();
+				}
+			}
+		}
+
+		/**
+		 * Retires the lane if it has drained.
+		 * 
+		 * @return whether the lane retired.
+		 */
+		protected boolean retire() {
+			synchronized (forName) {
+				synchronized (this) {
+					if (!queue.isEmpty())
+						return false;
+					retired = true;
+				}
+				forName.remove(listener, this);
+				if (forName.isEmpty())
+					lanes.remove(name, forName);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The future of a bundle of coalesced packets, passing its result on to
+	 * the futures of the packets in it.
+	 * 
+	 * @author kneelawk
+	 *
+	 */
+	protected static class BundleFuture extends SendFuture {
+		protected ArrayList<SendFuture> futures;
+
+		public BundleFuture(ArrayList<SendFuture> futures) {
+			this.futures = futures;
+		}
+
+		@Override
+		void complete() {
+			super.complete();
+			for (SendFuture future : futures) {
+				if (future != null)
+					future.complete();
+			}
+		}
+
+		@Override
+		void fail(Throwable cause) {
+			super.fail(cause);
+			for (SendFuture future : futures) {
+				if (future != null)
+					future.fail(cause);
+			}
+		}
+	}
+
+	/**
+	 * An encoded packet waiting to be written, with the future to complete
+	 * once it has been.
+	 * 
+	 * @author kneelawk
+	 *
+	 */
+	protected static class OutgoingPacket {
+		/**
+		 * Tells the writer to stop once everything before it is written.
+		 */
+		public static final OutgoingPacket CLOSE = new OutgoingPacket(
+				ByteBuffer.allocate(0), null);
+
+		public ByteBuffer data;
+		public int length;
+		public SendFuture future;
+		public ByteBufferPool pool;
+		public int lane = PacketPriority.NORMAL.ordinal();
+		/**
+		 * The part of a chunked packet that hasn't been cut into chunks yet.
+		 */
+		public ByteBuffer unchunked;
+		public int transferId;
+		/**
+		 * The chunk frame header written before data, if this is a chunk.
+		 */
+		public ByteBuffer header;
+		/**
+		 * The packet this is a chunk of, if it is one.
+		 */
+		public OutgoingPacket parent;
+		public boolean lastChunk;
+
+		public OutgoingPacket(ByteBuffer data, SendFuture future) {
+			this.data = data;
+			this.future = future;
+			length = data.remaining();
+		}
+
+		/**
+		 * @param pool
+		 *            the pool data came from, to return it to once written.
+		 */
+		public OutgoingPacket(ByteBuffer data, SendFuture future,
+				ByteBufferPool pool) {
+			this(data, future);
+			this.pool = pool;
+		}
+
+		/**
+		 * Returns the data to its pool, if it has one.
+		 */
+		public void release() {
+			if (pool != null) {
+				pool.release(data);
+				pool = null;
+			}
+		}
 	}
 }
@@ -24,16 +24,35 @@
 
 package com.kneelawk.stree.packet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import com.kneelawk.stree.core.MapSTreeNode;
 import com.kneelawk.stree.core.STreeIO;
+import com.kneelawk.stree.packet.streamProviders.InputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.OutputStreamProvider;
 
 public class PacketIO {
+	/**
+	 * The largest frame payload, in bytes, that will be accepted when reading
+	 * framed packets.
+	 */
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * The longest string, in bytes, that will be accepted by
+	 * {@link #readString(InputStream)}.
+	 */
+	public static final int MAX_STRING_LENGTH = 65535;
+
 	public static Packet readPacket(InputStream is) throws IOException {
 		return Packet.readPacket((MapSTreeNode) STreeIO
 				.readSTreeNodeFromStream(is));
@@ -44,6 +63,45 @@ public class PacketIO {
 		STreeIO.writeSTreeNodeToStream(os, Packet.writePacket(packet));
 	}
 
+	/**
+	 * Reads a packet written by
+	 * {@link #writePacket(OutputStream, Packet, CompactPacketIds)}.
+	 * 
+	 * @param is
+	 *            the stream to read from.
+	 * @param ids
+	 *            the IDs negotiated for the connection, or null if there are
+	 *            none.
+	 * @return the packet read.
+	 * @throws IOException
+	 */
+	public static Packet readPacket(InputStream is, CompactPacketIds ids)
+			throws IOException {
+		if (ids == null)
+			return readPacket(is);
+		return ids.readPacket(is);
+	}
+
+	/**
+	 * Writes packet, using the compact encoding if ids is not null.
+	 * 
+	 * @param os
+	 *            the stream to write to.
+	 * @param packet
+	 *            the Packet to write.
+	 * @param ids
+	 *            the IDs negotiated for the connection, or null if there are
+	 *            none.
+	 * @throws IOException
+	 */
+	public static void writePacket(OutputStream os, Packet packet,
+			CompactPacketIds ids) throws IOException {
+		if (ids == null)
+			writePacket(os, packet);
+		else
+			ids.writePacket(os, packet);
+	}
+
 	public static Packet readCompressedPacket(InputStream is)
 			throws IOException {
 		return readPacket(new GZIPInputStream(is));
@@ -53,4 +111,370 @@ public class PacketIO {
 			throws IOException {
 		writePacket(new GZIPOutputStream(os), packet);
 	}
+
+	/**
+	 * Encodes packet through the given provider and returns the resulting
+	 * bytes. The provider's stream is closed afterwards so compressing
+	 * providers write out everything they have buffered.
+	 * 
+	 * @param packet
+	 *            the Packet to encode.
+	 * @param provider
+	 *            the provider to encode through.
+	 * @return the encoded packet.
+	 * @throws IOException
+	 */
+	public static byte[] encodePacket(Packet packet,
+			OutputStreamProvider provider) throws IOException {
+		return encodePacket(packet, provider, null);
+	}
+
+	/**
+	 * Encodes packet like {@link #encodePacket(Packet, OutputStreamProvider)},
+	 * using the compact encoding if ids is not null.
+	 * 
+	 * @param packet
+	 *            the Packet to encode.
+	 * @param provider
+	 *            the provider to encode through.
+	 * @param ids
+	 *            the IDs negotiated for the connection, may be null.
+	 * @return the encoded packet.
+	 * @throws IOException
+	 */
+	public static byte[] encodePacket(Packet packet,
+			OutputStreamProvider provider, CompactPacketIds ids)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = provider.getOutputStream(bytes);
+		writePacket(out, packet, ids);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a packet from a byte array written by
+	 * {@link #encodePacket(Packet, OutputStreamProvider)}.
+	 * 
+	 * @param data
+	 *            the array containing the packet.
+	 * @param offset
+	 *            the offset of the packet within data.
+	 * @param length
+	 *            the length of the packet.
+	 * @param provider
+	 *            the provider the packet was encoded with.
+	 * @return the decoded packet.
+	 * @throws IOException
+	 */
+	public static Packet decodePacket(byte[] data, int offset, int length,
+			InputStreamProvider provider) throws IOException {
+		return decodePacket(data, offset, length, provider, null);
+	}
+
+	/**
+	 * Decodes a packet from a byte array written by
+	 * {@link #encodePacket(Packet, OutputStreamProvider, CompactPacketIds)}.
+	 * 
+	 * @param data
+	 *            the array containing the packet.
+	 * @param offset
+	 *            the offset of the packet within data.
+	 * @param length
+	 *            the length of the packet.
+	 * @param provider
+	 *            the provider the packet was encoded with.
+	 * @param ids
+	 *            the IDs the packet was encoded with, may be null.
+	 * @return the decoded packet.
+	 * @throws IOException
+	 */
+	public static Packet decodePacket(byte[] data, int offset, int length,
+			InputStreamProvider provider, CompactPacketIds ids)
+			throws IOException {
+		return readPacket(provider.getInputStream(new ByteArrayInputStream(
+				data, offset, length)), ids);
+	}
+
+	/**
+	 * Writes packet as a single frame: the length of the encoded packet as a
+	 * varint, followed by the encoded packet.
+	 * 
+	 * @param os
+	 *            the stream to write to.
+	 * @param packet
+	 *            the Packet to write.
+	 * @param provider
+	 *            the provider to encode the packet through.
+	 * @throws IOException
+	 */
+	public static void writeFramedPacket(OutputStream os, Packet packet,
+			OutputStreamProvider provider) throws IOException {
+		writeFrame(os, encodePacket(packet, provider));
+	}
+
+	/**
+	 * Prefixes payload with its length, producing a complete frame.
+	 * 
+	 * @param payload
+	 *            the frame's contents.
+	 * @return the frame.
+	 */
+	public static byte[] frame(byte[] payload) {
+		int header = varIntSize(payload.length);
+		byte[] frame = new byte[header + payload.length];
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		writeVarInt(buffer, payload.length);
+		buffer.put(payload);
+		return frame;
+	}
+
+	/**
+	 * Writes payload as a single frame.
+	 * 
+	 * @param os
+	 *            the stream to write to.
+	 * @param payload
+	 *            the frame's contents.
+	 * @throws IOException
+	 */
+	public static void writeFrame(OutputStream os, byte[] payload)
+			throws IOException {
+		writeVarInt(os, payload.length);
+		os.write(payload);
+	}
+
+	/**
+	 * Reads a packet written by
+	 * {@link #writeFramedPacket(OutputStream, Packet, OutputStreamProvider)}.
+	 * The whole frame is read before decoding starts.
+	 * 
+	 * @param is
+	 *            the stream to read from.
+	 * @param provider
+	 *            the provider the packet was encoded with.
+	 * @return the decoded packet.
+	 * @throws IOException
+	 */
+	public static Packet readFramedPacket(InputStream is,
+			InputStreamProvider provider) throws IOException {
+		byte[] payload = readFrame(is);
+		return decodePacket(payload, 0, payload.length, provider);
+	}
+
+	/**
+	 * Reads a single frame's payload.
+	 * 
+	 * @param is
+	 *            the stream to read from.
+	 * @return the frame's payload.
+	 * @throws IOException
+	 */
+	public static byte[] readFrame(InputStream is) throws IOException {
+		byte[] payload = new byte[checkFrameLength(readVarInt(is))];
+		readFully(is, payload, 0, payload.length);
+		return payload;
+	}
+
+	/**
+	 * Reads exactly length bytes into data.
+	 * 
+	 * @throws EOFException
+	 *             if the stream ends first.
+	 */
+	public static void readFully(InputStream is, byte[] data, int offset,
+			int length) throws IOException {
+		while (length > 0) {
+			int read = is.read(data, offset, length);
+			if (read < 0)
+				throw new EOFException();
+			offset += read;
+			length -= read;
+		}
+	}
+
+	/**
+	 * Skips exactly length bytes.
+	 * 
+	 * @throws EOFException
+	 *             if the stream ends first.
+	 */
+	public static void skipFully(InputStream is, long length)
+			throws IOException {
+		while (length > 0) {
+			long skipped = is.skip(length);
+			if (skipped <= 0) {
+				if (is.read() < 0)
+					throw new EOFException();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	public static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+				| ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	public static int checkFrameLength(int length) throws IOException {
+		return checkFrameLength(length, MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * Checks a frame length read from a peer against the largest frame this
+	 * side accepts, which is never more than {@link #MAX_FRAME_LENGTH}.
+	 * 
+	 * @param length
+	 *            the length read.
+	 * @param maxLength
+	 *            the largest frame accepted.
+	 * @return length.
+	 * @throws IOException
+	 *             if length is negative or too large.
+	 */
+	public static int checkFrameLength(int length, int maxLength)
+			throws IOException {
+		if (length < 0 || length > Math.min(maxLength, MAX_FRAME_LENGTH))
+			throw new IOException("Invalid frame length: " + length);
+		return length;
+	}
+
+	/**
+	 * Writes value as an unsigned LEB128 varint, 7 bits per byte.
+	 * 
+	 * @param os
+	 *            the stream to write to.
+	 * @param value
+	 *            the value to write.
+	 * @throws IOException
+	 */
+	public static void writeVarInt(OutputStream os, int value)
+			throws IOException {
+		while ((value & ~0x7F) != 0) {
+			os.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		os.write(value);
+	}
+
+	public static void writeVarInt(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	public static int readVarInt(InputStream is) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = is.read();
+			if (b < 0)
+				throw new EOFException();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Varint too long");
+	}
+
+	/**
+	 * Reads a varint from buffer without blocking. If the buffer does not yet
+	 * hold the whole varint, -1 is returned and the buffer's position is left
+	 * unchanged.
+	 * 
+	 * @param buffer
+	 *            the buffer to read from.
+	 * @return the value read, or -1 if more bytes are needed.
+	 * @throws IOException
+	 */
+	public static int readVarInt(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!buffer.hasRemaining()) {
+				buffer.position(start);
+				return -1;
+			}
+			int b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Varint too long");
+	}
+
+	/**
+	 * Writes str as a varint byte length followed by its UTF-8 bytes.
+	 * 
+	 * @param os
+	 *            the stream to write to.
+	 * @param str
+	 *            the string to write.
+	 * @throws IOException
+	 */
+	public static void writeString(OutputStream os, String str)
+			throws IOException {
+		int length = str.length();
+		boolean ascii = length <= MAX_STRING_LENGTH;
+		for (int i = 0; i < length && ascii; i++) {
+			ascii = str.charAt(i) < 0x80;
+		}
+		if (ascii) {
+			// ASCII is its own UTF-8 encoding, so skip the byte array
+			writeVarInt(os, length);
+			for (int i = 0; i < length; i++) {
+				os.write(str.charAt(i));
+			}
+			return;
+		}
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(os, bytes.length);
+		os.write(bytes);
+	}
+
+	public static String readString(InputStream is) throws IOException {
+		int length = readVarInt(is);
+		if (length < 0 || length > MAX_STRING_LENGTH)
+			throw new IOException("Invalid string length: " + length);
+		byte[] bytes = new byte[length];
+		readFully(is, bytes, 0, length);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(OutputStream, String)}
+	 * from buffer without blocking. If the buffer does not yet hold the whole
+	 * string, null is returned and the buffer's position is left unchanged.
+	 * 
+	 * @param buffer
+	 *            the buffer to read from.
+	 * @return the string read, or null if more bytes are needed.
+	 * @throws IOException
+	 */
+	public static String readString(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		int length = readVarInt(buffer);
+		if (length < 0)
+			return null;
+		if (length > MAX_STRING_LENGTH)
+			throw new IOException("Invalid string length: " + length);
+		if (buffer.remaining() < length) {
+			buffer.position(start);
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			size++;
+			value >>>= 7;
+		}
+		return size;
+	}
 }
@@ -0,0 +1,109 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.kneelawk.stree.packet.infoProviders.PacketInfoProvider;
+
+/**
+ * Assigns {@link PacketPriority priorities} to packets by name or by the
+ * provider that writes them. A priority set for a packet's name wins over one
+ * set for its provider, and packets with neither are
+ * {@link PacketPriority#NORMAL}. Safe to change while connections are using
+ * it.
+ * 
+ * @author kneelawk
+ *
+ */
+public class PacketPriorities {
+	protected ConcurrentHashMap<String, PacketPriority> byName = new ConcurrentHashMap<String, PacketPriority>();
+	protected ConcurrentHashMap<String, PacketPriority> byProvider = new ConcurrentHashMap<String, PacketPriority>();
+
+	/**
+	 * Sets the priority of packets with a name.
+	 * 
+	 * @param name
+	 *            the packet name.
+	 * @param priority
+	 *            the priority, or null to remove it.
+	 */
+	public void setPriority(String name, PacketPriority priority) {
+		if (priority == null)
+			byName.remove(name);
+		else
+			byName.put(name, priority);
+	}
+
+	/**
+	 * Sets the priority of packets written by a provider.
+	 * 
+	 * @param provider
+	 *            the packet info provider.
+	 * @param priority
+	 *            the priority, or null to remove it.
+	 */
+	public void setPriority(PacketInfoProvider provider,
+			PacketPriority priority) {
+		if (priority == null)
+			byProvider.remove(provider.getPacketID());
+		else
+			byProvider.put(provider.getPacketID(), priority);
+	}
+
+	/**
+	 * @return whether no priorities have been set, so every packet is
+	 *         {@link PacketPriority#NORMAL}.
+	 */
+	public boolean isEmpty() {
+		return byName.isEmpty() && byProvider.isEmpty();
+	}
+
+	/**
+	 * @param packet
+	 *            the packet, may be null.
+	 * @return the priority of packet.
+	 */
+	public PacketPriority getPriority(Packet packet) {
+		if (packet == null || isEmpty())
+			return PacketPriority.NORMAL;
+		return getPriority(Packet.infoProviderOf(packet).getPacketID(),
+				packet.name);
+	}
+
+	/**
+	 * @param packetId
+	 *            the ID of the packet's provider, may be null.
+	 * @param name
+	 *            the packet's name, may be null.
+	 * @return the priority of a packet with that provider and name.
+	 */
+	public PacketPriority getPriority(String packetId, String name) {
+		PacketPriority priority = name != null ? byName.get(name) : null;
+		if (priority == null && packetId != null)
+			priority = byProvider.get(packetId);
+		return priority != null ? priority : PacketPriority.NORMAL;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.kneelawk.stree.packet.infoProviders.PacketInfoProvider;
+
+/**
+ * The packet info providers packets can be read with, by packet ID. Readers
+ * look providers up in an immutable snapshot with a single volatile read and
+ * no locks. Registering and unregistering copy the snapshot and swap it in,
+ * so plugins can add and remove packet types while connections are live.
+ * 
+ * @author kneelawk
+ *
+ */
+public class PacketRegistry {
+	protected AtomicReference<Snapshot> current;
+
+	public PacketRegistry() {
+		current = new AtomicReference<Snapshot>(new Snapshot(0,
+				new HashMap<String, PacketInfoProvider>()));
+	}
+
+	/**
+	 * Adds a provider under its packet ID.
+	 * 
+	 * @param provider
+	 *            the provider to add.
+	 * @throws RuntimeException
+	 *             if another provider already has the same ID.
+	 */
+	public void register(PacketInfoProvider provider) {
+		String id = provider.getPacketID();
+		while (true) {
+			Snapshot snapshot = current.get();
+			if (snapshot.providers.containsKey(id))
+				throw new RuntimeException(
+						"There is already a packet registered as: " + id);
+			HashMap<String, PacketInfoProvider> providers = new HashMap<String, PacketInfoProvider>(
+					snapshot.providers);
+			providers.put(id, provider);
+			if (current.compareAndSet(snapshot, new Snapshot(
+					snapshot.version + 1, providers)))
+				return;
+		}
+	}
+
+	/**
+	 * Removes the provider registered under an ID. Packets with that ID that
+	 * arrive afterwards fail to decode.
+	 * 
+	 * @param id
+	 *            the packet ID to remove.
+	 * @return the provider that was removed, or null if there was none.
+	 */
+	public PacketInfoProvider unregister(String id) {
+		while (true) {
+			Snapshot snapshot = current.get();
+			PacketInfoProvider removed = snapshot.providers.get(id);
+			if (removed == null)
+				return null;
+			HashMap<String, PacketInfoProvider> providers = new HashMap<String, PacketInfoProvider>(
+					snapshot.providers);
+			providers.remove(id);
+			if (current.compareAndSet(snapshot, new Snapshot(
+					snapshot.version + 1, providers)))
+				return removed;
+		}
+	}
+
+	/**
+	 * Removes provider if it is still the one registered under its ID.
+	 * 
+	 * @param provider
+	 *            the provider to remove.
+	 * @return whether it was removed.
+	 */
+	public boolean unregister(PacketInfoProvider provider) {
+		String id = provider.getPacketID();
+		while (true) {
+			Snapshot snapshot = current.get();
+			if (snapshot.providers.get(id) != provider)
+				return false;
+			HashMap<String, PacketInfoProvider> providers = new HashMap<String, PacketInfoProvider>(
+					snapshot.providers);
+			providers.remove(id);
+			if (current.compareAndSet(snapshot, new Snapshot(
+					snapshot.version + 1, providers)))
+				return true;
+		}
+	}
+
+	/**
+	 * @param id
+	 *            a packet ID.
+	 * @return the provider registered under id right now, or null.
+	 */
+	public PacketInfoProvider get(String id) {
+		return current.get().get(id);
+	}
+
+	/**
+	 * @return the current, immutable set of providers.
+	 */
+	public Snapshot snapshot() {
+		return current.get();
+	}
+
+	/**
+	 * @return the number of times the registry has changed.
+	 */
+	public long getVersion() {
+		return current.get().version;
+	}
+
+	/**
+	 * An immutable view of a registry at one version.
+	 * 
+	 * @author kneelawk
+	 *
+	 */
+	public static class Snapshot {
+		private final long version;
+		private final Map<String, PacketInfoProvider> providers;
+		private final String[] ids;
+
+		protected Snapshot(long version,
+				HashMap<String, PacketInfoProvider> providers) {
+			this.version = version;
+			this.providers = providers;
+			ids = providers.keySet().toArray(new String[providers.size()]);
+			Arrays.sort(ids);
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public PacketInfoProvider get(String id) {
+			return providers.get(id);
+		}
+
+		public boolean contains(String id) {
+			return providers.containsKey(id);
+		}
+
+		/**
+		 * @return the registered packet IDs, sorted.
+		 */
+		public String[] getIds() {
+			return ids.clone();
+		}
+	}
+}
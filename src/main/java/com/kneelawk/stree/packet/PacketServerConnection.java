@@ -24,36 +24,71 @@
 
 package com.kneelawk.stree.packet;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import com.kneelawk.stree.packet.infoProviders.PacketInfoProvider;
 import com.kneelawk.stree.packet.listener.ConnectionListener;
 import com.kneelawk.stree.packet.listener.DisconnectionListener;
 import com.kneelawk.stree.packet.listener.PacketListener;
+import com.kneelawk.stree.packet.metrics.ConnectionMetrics;
+import com.kneelawk.stree.packet.metrics.MetricsSnapshot;
+import com.kneelawk.stree.packet.metrics.MetricsSource;
 import com.kneelawk.stree.packet.streamProviders.InputStreamProvider;
 import com.kneelawk.stree.packet.streamProviders.OutputStreamProvider;
 import com.kneelawk.stree.packet.streamProviders.ThroughInputStreamProvider;
 import com.kneelawk.stree.packet.streamProviders.ThroughOutputStreamProvider;
 
-public class PacketServerConnection {
+public class PacketServerConnection implements MetricsSource {
 	protected ServerSocket socket;
 	protected InputStreamProvider isProvider;
 	protected OutputStreamProvider osProvider;
-	protected TreeMap<SCD, PacketConnection> packetConnections;
-	protected ArrayList<ConnectionListener> connectionListeners;
-	protected ArrayList<PacketListener> toAddPacketListeners;
-	protected ArrayList<NPL> toAddNamedPacketListeners;
-	protected TreeMap<SCD, ArrayList<PacketListener>> toAddIPdPacketListeners;
-	protected TreeMap<SCD, ArrayList<NPL>> toAddIPdNamedPacketListeners;
-	protected ArrayList<DisconnectionListener> toAddDisconnectListeners;
-	protected boolean running = false;
+	protected ConcurrentHashMap<SCD, PacketConnection> packetConnections;
+	protected CopyOnWriteArrayList<ConnectionListener> connectionListeners;
+	protected CopyOnWriteArrayList<PacketListener> toAddPacketListeners;
+	protected CopyOnWriteArrayList<NPL> toAddNamedPacketListeners;
+	protected ConcurrentHashMap<SCD, CopyOnWriteArrayList<PacketListener>> toAddIPdPacketListeners;
+	protected ConcurrentHashMap<SCD, CopyOnWriteArrayList<NPL>> toAddIPdNamedPacketListeners;
+	protected CopyOnWriteArrayList<DisconnectionListener> toAddDisconnectListeners;
+	protected volatile boolean running = false;
+	protected boolean framed = false;
+	protected int supportedFeatures = 0;
+	protected ThreadFactory threadFactory;
+	protected long highWaterMark = PacketConnection.DEFAULT_HIGH_WATER_MARK;
+	protected long lingerNanos = 0;
+	protected long handshakeTimeoutMillis =
+			PacketConnection.DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+	protected BroadcastPolicy broadcastPolicy = BroadcastPolicy.WAIT;
+	protected boolean metricsEnabled = false;
+	protected boolean perPacketLatency = false;
+	protected boolean lazyDecoding = false;
+	protected boolean unbundling = false;
+	protected Executor listenerExecutor;
+	protected int inboundPacketLimit = 0;
+	protected long inboundByteLimit = 0;
+	protected InboundPolicy inboundPolicy = InboundPolicy.BLOCK;
+	protected PacketPriorities priorities = new PacketPriorities();
+	protected int chunkSize = 0;
+	protected long reassemblyLimit = ChunkReassembler.DEFAULT_MEMORY_LIMIT;
+	protected File spoolDirectory;
+	protected long spoolLimit = ChunkReassembler.DEFAULT_SPOOL_LIMIT;
+	protected int transferLimit = ChunkReassembler.DEFAULT_TRANSFER_LIMIT;
+	protected int maxFrameLength = PacketConnection.DEFAULT_MAX_FRAME_LENGTH;
+	protected ConnectionMetrics closedMetrics = new ConnectionMetrics();
+	protected Object ipListenersLock = new Object();
 
 	public PacketServerConnection(ServerSocket serverSocket) {
 		this(serverSocket, new ThroughInputStreamProvider(),
@@ -65,13 +100,13 @@ public class PacketServerConnection {
 		socket = serverSocket;
 		isProvider = inProv;
 		osProvider = outProv;
-		packetConnections = new TreeMap<SCD, PacketConnection>();
-		connectionListeners = new ArrayList<ConnectionListener>();
-		toAddPacketListeners = new ArrayList<PacketListener>();
-		toAddNamedPacketListeners = new ArrayList<NPL>();
-		toAddIPdPacketListeners = new TreeMap<SCD, ArrayList<PacketListener>>();
-		toAddIPdNamedPacketListeners = new TreeMap<SCD, ArrayList<NPL>>();
-		toAddDisconnectListeners = new ArrayList<DisconnectionListener>();
+		packetConnections = new ConcurrentHashMap<SCD, PacketConnection>();
+		connectionListeners = new CopyOnWriteArrayList<ConnectionListener>();
+		toAddPacketListeners = new CopyOnWriteArrayList<PacketListener>();
+		toAddNamedPacketListeners = new CopyOnWriteArrayList<NPL>();
+		toAddIPdPacketListeners = new ConcurrentHashMap<SCD, CopyOnWriteArrayList<PacketListener>>();
+		toAddIPdNamedPacketListeners = new ConcurrentHashMap<SCD, CopyOnWriteArrayList<NPL>>();
+		toAddDisconnectListeners = new CopyOnWriteArrayList<DisconnectionListener>();
 	}
 
 	public void addConnectionListener(ConnectionListener connListener) {
@@ -101,30 +136,36 @@ public class PacketServerConnection {
 
 	public void addPacketListenerForIP(PacketListener listener, InetAddress ip,
 			int port) {
-		PacketConnection conn = packetConnections.get(new SCD(ip, port));
-		conn.addPacketListener(listener);
-		ArrayList<PacketListener> listeners = toAddIPdPacketListeners
-				.get(new SCD(ip, port));
-		boolean createNew = listeners == null;
-		if (createNew)
-			listeners = new ArrayList<PacketListener>();
-		listeners.add(listener);
-		if (createNew)
-			toAddIPdPacketListeners.put(new SCD(ip, port), listeners);
+		SCD desc = new SCD(ip, port);
+		synchronized (ipListenersLock) {
+			CopyOnWriteArrayList<PacketListener> listeners = toAddIPdPacketListeners
+					.get(desc);
+			if (listeners == null) {
+				listeners = new CopyOnWriteArrayList<PacketListener>();
+				toAddIPdPacketListeners.put(desc, listeners);
+			}
+			listeners.add(listener);
+			PacketConnection conn = packetConnections.get(desc);
+			if (conn != null)
+				conn.addPacketListener(listener);
+		}
 	}
 
 	public void addPacketListenerForIPAndNames(PacketListener listener,
 			InetAddress ip, int port, String... names) {
-		PacketConnection conn = packetConnections.get(new SCD(ip, port));
-		conn.addPacketListenerForNames(listener, names);
-		ArrayList<NPL> listeners = toAddIPdNamedPacketListeners.get(new SCD(ip,
-				port));
-		boolean createNew = listeners == null;
-		if (createNew)
-			listeners = new ArrayList<NPL>();
-		listeners.add(new NPL(listener, names));
-		if (createNew)
-			toAddIPdNamedPacketListeners.put(new SCD(ip, port), listeners);
+		SCD desc = new SCD(ip, port);
+		synchronized (ipListenersLock) {
+			CopyOnWriteArrayList<NPL> listeners = toAddIPdNamedPacketListeners
+					.get(desc);
+			if (listeners == null) {
+				listeners = new CopyOnWriteArrayList<NPL>();
+				toAddIPdNamedPacketListeners.put(desc, listeners);
+			}
+			listeners.add(new NPL(listener, names));
+			PacketConnection conn = packetConnections.get(desc);
+			if (conn != null)
+				conn.addPacketListenerForNames(listener, names);
+		}
 	}
 
 	public void removePacketListener(PacketListener listener) {
@@ -146,27 +187,35 @@ public class PacketServerConnection {
 
 	public void removePacketListenerForIP(PacketListener listener,
 			InetAddress ip, int port) {
-		PacketConnection conn = packetConnections.get(new SCD(ip, port));
-		conn.removePacketListener(listener);
-		ArrayList<PacketListener> listeners = toAddIPdPacketListeners
-				.get(new SCD(ip, port));
-		if (listeners != null) {
-			listeners.remove(listener);
-			if (listeners.size() < 1)
-				toAddIPdPacketListeners.remove(new SCD(ip, port));
+		SCD desc = new SCD(ip, port);
+		synchronized (ipListenersLock) {
+			PacketConnection conn = packetConnections.get(desc);
+			if (conn != null)
+				conn.removePacketListener(listener);
+			CopyOnWriteArrayList<PacketListener> listeners = toAddIPdPacketListeners
+					.get(desc);
+			if (listeners != null) {
+				listeners.remove(listener);
+				if (listeners.isEmpty())
+					toAddIPdPacketListeners.remove(desc);
+			}
 		}
 	}
 
 	public void removePacketListenerForIPAndNames(PacketListener listener,
 			InetAddress ip, int port, String... names) {
-		PacketConnection conn = packetConnections.get(new SCD(ip, port));
-		conn.removePacketListenerForNames(listener, names);
-		ArrayList<NPL> listeners = toAddIPdNamedPacketListeners.get(new SCD(ip,
-				port));
-		if (listeners != null) {
-			listeners.remove(new NPL(listener, names));
-			if (listeners.size() < 1)
-				toAddIPdNamedPacketListeners.remove(new SCD(ip, port));
+		SCD desc = new SCD(ip, port);
+		synchronized (ipListenersLock) {
+			PacketConnection conn = packetConnections.get(desc);
+			if (conn != null)
+				conn.removePacketListenerForNames(listener, names);
+			CopyOnWriteArrayList<NPL> listeners = toAddIPdNamedPacketListeners
+					.get(desc);
+			if (listeners != null) {
+				listeners.remove(new NPL(listener, names));
+				if (listeners.isEmpty())
+					toAddIPdNamedPacketListeners.remove(desc);
+			}
 		}
 	}
 
@@ -189,7 +238,7 @@ public class PacketServerConnection {
 	public PacketServerConnection start() {
 		if (!running) {
 			running = true;
-			Thread connListen = new Thread(new Runnable() {
+			Runnable acceptLoop = new Runnable() {
 				@Override
 				public void run() {
 					while (running) {
@@ -202,8 +251,6 @@ public class PacketServerConnection {
 							e.printStackTrace();
 						}
 						if (clientSocket != null) {
-							SCD desc = new SCD(clientSocket.getInetAddress(),
-									clientSocket.getPort());
 							PacketConnection conn = null;
 							try {
 								conn = new PacketConnection(clientSocket,
@@ -212,30 +259,81 @@ public class PacketServerConnection {
 								e.printStackTrace();
 							}
 							if (conn != null) {
-								addListeners(conn, desc);
-								conn.addDisconnectionListener(new DisconnectionListener() {
-									@Override
-									public void onSocketDisconnect(
-											Socket socket,
-											PacketConnection connection) {
-										packetConnections.remove(new SCD(socket
-												.getInetAddress(), socket
-												.getPort()));
-									}
-								});
-								packetConnections.put(desc, conn);
-								conn.start();
-								alertListeners(clientSocket, conn);
+								acceptConnection(conn);
 							}
 						}
 					}
 				}
-			}, "ConnectionListener");
-			connListen.start();
+			};
+			PacketThreads.newThread(threadFactory, acceptLoop,
+					"ConnectionListener").start();
 		}
 		return this;
 	}
 
+	/**
+	 * Sets up a newly accepted connection, starts it and notifies connection
+	 * listeners.
+	 * 
+	 * @param conn
+	 *            the connection to add.
+	 */
+	protected void acceptConnection(PacketConnection conn) {
+		Socket clientSocket = conn.getSocket();
+		final SCD desc = new SCD(clientSocket.getInetAddress(),
+				clientSocket.getPort());
+		configure(conn);
+		conn.addDisconnectionListener(new DisconnectionListener() {
+			@Override
+			public void onSocketDisconnect(Socket socket,
+					PacketConnection connection) {
+				packetConnections.remove(desc, connection);
+				ConnectionMetrics metrics = connection.getMetrics();
+				if (metrics != null)
+					closedMetrics.add(metrics);
+			}
+		});
+		// listeners for the connection's address are either added here or
+		// find the connection in packetConnections, never neither
+		synchronized (ipListenersLock) {
+			addListeners(conn, desc);
+			packetConnections.put(desc, conn);
+		}
+		conn.start();
+		alertListeners(clientSocket, conn);
+	}
+
+	/**
+	 * Applies this server's connection settings to a newly accepted
+	 * connection.
+	 * 
+	 * @param conn
+	 *            the connection to configure.
+	 */
+	protected void configure(PacketConnection conn) {
+		conn.setFramed(framed);
+		conn.setSupportedFeatures(supportedFeatures);
+		conn.setThreadFactory(threadFactory);
+		conn.setHighWaterMark(highWaterMark);
+		conn.setLinger(lingerNanos, TimeUnit.NANOSECONDS);
+		conn.setHandshakeTimeout(handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+		conn.setMetricsEnabled(metricsEnabled);
+		if (metricsEnabled)
+			conn.getMetrics().setPerPacketLatency(perPacketLatency);
+		conn.setLazyDecoding(lazyDecoding);
+		conn.setUnbundling(unbundling);
+		conn.setListenerExecutor(listenerExecutor);
+		conn.setInboundLimits(inboundPacketLimit, inboundByteLimit);
+		conn.setInboundPolicy(inboundPolicy);
+		conn.setPriorities(priorities);
+		conn.setChunkSize(chunkSize);
+		conn.setReassemblyLimit(reassemblyLimit);
+		conn.setSpoolDirectory(spoolDirectory);
+		conn.setSpoolLimit(spoolLimit);
+		conn.setTransferLimit(transferLimit);
+		conn.setMaxFrameLength(maxFrameLength);
+	}
+
 	protected void addListeners(PacketConnection conn, SCD desc) {
 		for (PacketListener listener : toAddPacketListeners) {
 			conn.addPacketListener(listener);
@@ -243,12 +341,14 @@ public class PacketServerConnection {
 		for (NPL pair : toAddNamedPacketListeners) {
 			conn.addPacketListenerForNames(pair.listener, pair.names);
 		}
-		ArrayList<PacketListener> listeners = toAddIPdPacketListeners.get(desc);
+		CopyOnWriteArrayList<PacketListener> listeners = toAddIPdPacketListeners
+				.get(desc);
 		if (listeners != null)
 			for (PacketListener listener : listeners)
 				conn.addPacketListener(listener);
-		ArrayList<NPL> namedListeners = toAddIPdNamedPacketListeners.get(desc);
-		if (listeners != null)
+		CopyOnWriteArrayList<NPL> namedListeners = toAddIPdNamedPacketListeners
+				.get(desc);
+		if (namedListeners != null)
 			for (NPL pair : namedListeners)
 				conn.addPacketListenerForNames(pair.listener, pair.names);
 		for (DisconnectionListener listener : toAddDisconnectListeners) {
@@ -275,54 +375,642 @@ public class PacketServerConnection {
 		return socket;
 	}
 
+	/**
+	 * @param ip
+	 *            the address of the remote end.
+	 * @param port
+	 *            the port of the remote end.
+	 * @return the open connection to that address and port, or null if there
+	 *         is none.
+	 */
+	public PacketConnection getConnection(InetAddress ip, int port) {
+		return packetConnections.get(new SCD(ip, port));
+	}
+
+	/**
+	 * @return the number of open connections.
+	 */
+	public int getConnectionCount() {
+		return packetConnections.size();
+	}
+
+	public boolean isFramed() {
+		return framed;
+	}
+
+	/**
+	 * Sets whether accepted connections use length-prefixed frames. Only
+	 * affects connections accepted after this call.
+	 * 
+	 * @param framed
+	 *            whether to use length-prefixed frames.
+	 * @see PacketConnection#setFramed(boolean)
+	 */
+	public void setFramed(boolean framed) {
+		this.framed = framed;
+	}
+
+	public int getSupportedFeatures() {
+		return supportedFeatures;
+	}
+
+	/**
+	 * Sets the features accepted connections agree to when a client asks for
+	 * them in a handshake. Clients that don't send a handshake keep working
+	 * without any features. Only affects connections accepted after this call.
+	 * 
+	 * @param features
+	 *            a combination of the PacketConnection.FEATURE_ flags.
+	 * @see PacketConnection#setSupportedFeatures(int)
+	 */
+	public void setSupportedFeatures(int features) {
+		supportedFeatures = features;
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Sets the factory used for the accept thread and for the threads of
+	 * every connection accepted afterwards, e.g.
+	 * {@link PacketThreads#virtualThreadFactory()}.
+	 * 
+	 * @param threadFactory
+	 *            the factory to use, or null for plain platform threads.
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	public long getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * Sets the write queue high-water mark of connections accepted after this
+	 * call.
+	 * 
+	 * @param highWaterMark
+	 *            the limit in bytes.
+	 * @see PacketConnection#setHighWaterMark(long)
+	 */
+	public void setHighWaterMark(long highWaterMark) {
+		this.highWaterMark = highWaterMark;
+	}
+
+	public long getHandshakeTimeout(TimeUnit unit) {
+		return unit.convert(handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets how long connections accepted after this call wait for their
+	 * client to open the feature handshake.
+	 * 
+	 * @param timeout
+	 *            the time to wait, or 0 to wait forever.
+	 * @param unit
+	 *            the unit of timeout.
+	 * @see PacketConnection#setHandshakeTimeout(long, TimeUnit)
+	 */
+	public void setHandshakeTimeout(long timeout, TimeUnit unit) {
+		handshakeTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	public long getLinger(TimeUnit unit) {
+		return unit.convert(lingerNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets the write linger of connections accepted after this call.
+	 * 
+	 * @param linger
+	 *            the time to wait.
+	 * @param unit
+	 *            the unit of linger.
+	 * @see PacketConnection#setLinger(long, TimeUnit)
+	 */
+	public void setLinger(long linger, TimeUnit unit) {
+		lingerNanos = unit.toNanos(linger);
+	}
+
+	public int getInboundPacketLimit() {
+		return inboundPacketLimit;
+	}
+
+	public long getInboundByteLimit() {
+		return inboundByteLimit;
+	}
+
+	/**
+	 * Sets the inbound queue limits of connections accepted after this call.
+	 * 
+	 * @param packets
+	 *            the most packets that may be queued, or 0 for no limit.
+	 * @param bytes
+	 *            the most encoded bytes that may be queued, or 0 for no limit.
+	 * @see PacketConnection#setInboundLimits(int, long)
+	 */
+	public void setInboundLimits(int packets, long bytes) {
+		inboundPacketLimit = packets;
+		inboundByteLimit = bytes;
+	}
+
+	public InboundPolicy getInboundPolicy() {
+		return inboundPolicy;
+	}
+
+	/**
+	 * Sets the inbound policy of connections accepted after this call.
+	 * 
+	 * @param inboundPolicy
+	 *            the policy to use.
+	 * @see PacketConnection#setInboundPolicy(InboundPolicy)
+	 */
+	public void setInboundPolicy(InboundPolicy inboundPolicy) {
+		this.inboundPolicy = inboundPolicy;
+	}
+
+	/**
+	 * @return the priority table shared by every connection of this server.
+	 */
+	public PacketPriorities getPriorities() {
+		return priorities;
+	}
+
+	/**
+	 * Sets the priority of packets with a name on every connection, open or
+	 * accepted later.
+	 * 
+	 * @param name
+	 *            the packet name.
+	 * @param priority
+	 *            the priority, or null to remove it.
+	 * @see PacketPriorities#setPriority(String, PacketPriority)
+	 */
+	public void setPriority(String name, PacketPriority priority) {
+		priorities.setPriority(name, priority);
+	}
+
+	/**
+	 * Sets the priority of packets written by a provider on every
+	 * connection, open or accepted later.
+	 * 
+	 * @param provider
+	 *            the packet info provider.
+	 * @param priority
+	 *            the priority, or null to remove it.
+	 * @see PacketPriorities#setPriority(PacketInfoProvider, PacketPriority)
+	 */
+	public void setPriority(PacketInfoProvider provider,
+			PacketPriority priority) {
+		priorities.setPriority(provider, priority);
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Sets the chunk size of connections accepted after this call.
+	 * 
+	 * @param chunkSize
+	 *            the most packet bytes sent in one chunk, or 0 to send every
+	 *            packet whole.
+	 * @see PacketConnection#setChunkSize(int)
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public long getReassemblyLimit() {
+		return reassemblyLimit;
+	}
+
+	/**
+	 * Sets the reassembly limit of each connection accepted after this call.
+	 * 
+	 * @param bytes
+	 *            the most bytes held by packets being reassembled.
+	 * @see PacketConnection#setReassemblyLimit(long)
+	 */
+	public void setReassemblyLimit(long bytes) {
+		reassemblyLimit = bytes;
+	}
+
+	public File getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	/**
+	 * Sets the spool directory of connections accepted after this call.
+	 * 
+	 * @param directory
+	 *            the directory to create spool files in, or null to drop
+	 *            packets over the reassembly limit instead.
+	 * @see PacketConnection#setSpoolDirectory(File)
+	 */
+	public void setSpoolDirectory(File directory) {
+		spoolDirectory = directory;
+	}
+
+	public long getSpoolLimit() {
+		return spoolLimit;
+	}
+
+	/**
+	 * Sets the spool limit of each connection accepted after this call.
+	 * 
+	 * @param bytes
+	 *            the most bytes held in spool files.
+	 * @see PacketConnection#setSpoolLimit(long)
+	 */
+	public void setSpoolLimit(long bytes) {
+		spoolLimit = bytes;
+	}
+
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	/**
+	 * Sets the largest frame each connection accepted after this call
+	 * accepts from its client.
+	 * 
+	 * @param bytes
+	 *            the largest frame accepted.
+	 * @see PacketConnection#setMaxFrameLength(int)
+	 */
+	public void setMaxFrameLength(int bytes) {
+		maxFrameLength = bytes;
+	}
+
+	public int getTransferLimit() {
+		return transferLimit;
+	}
+
+	/**
+	 * Sets the transfer limit of each connection accepted after this call.
+	 * 
+	 * @param transfers
+	 *            the most packets being reassembled at once.
+	 * @see PacketConnection#setTransferLimit(int)
+	 */
+	public void setTransferLimit(int transfers) {
+		transferLimit = transfers;
+	}
+
+	/**
+	 * @return the number of received packets the open connections have
+	 *         dropped because their inbound queues were full.
+	 */
+	public long getDroppedPacketCount() {
+		long dropped = 0;
+		for (PacketConnection conn : packetConnections.values()) {
+			dropped += conn.getDroppedPacketCount();
+		}
+		return dropped;
+	}
+
+	public Executor getListenerExecutor() {
+		return listenerExecutor;
+	}
+
+	/**
+	 * Sets the executor that the packet listeners of connections accepted
+	 * after this call run on. One executor is shared by all of them.
+	 * 
+	 * @param listenerExecutor
+	 *            the executor to run listeners on, or null to run them on each
+	 *            connection's dispatch thread.
+	 * @see PacketConnection#setListenerExecutor(Executor)
+	 */
+	public void setListenerExecutor(Executor listenerExecutor) {
+		this.listenerExecutor = listenerExecutor;
+	}
+
+	/**
+	 * @param listener
+	 *            a packet listener.
+	 * @return the number of packets waiting to be handed to listener, over
+	 *         all open connections.
+	 * @see PacketConnection#getListenerQueueDepth(PacketListener)
+	 */
+	public int getListenerQueueDepth(PacketListener listener) {
+		int depth = 0;
+		for (PacketConnection conn : packetConnections.values()) {
+			depth += conn.getListenerQueueDepth(listener);
+		}
+		return depth;
+	}
+
+	public boolean isUnbundling() {
+		return unbundling;
+	}
+
+	/**
+	 * Sets whether connections accepted after this call hand the packets in
+	 * received bundles to listeners one at a time.
+	 * 
+	 * @param unbundling
+	 *            whether to unbundle received bundles.
+	 * @see PacketConnection#setUnbundling(boolean)
+	 */
+	public void setUnbundling(boolean unbundling) {
+		this.unbundling = unbundling;
+	}
+
+	public boolean isLazyDecoding() {
+		return lazyDecoding;
+	}
+
+	/**
+	 * Sets whether connections accepted after this call decode packet data
+	 * lazily.
+	 * 
+	 * @param lazyDecoding
+	 *            whether to decode packet data lazily.
+	 * @see PacketConnection#setLazyDecoding(boolean)
+	 */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	public boolean isMetricsEnabled() {
+		return metricsEnabled;
+	}
+
+	/**
+	 * Turns metrics on or off for connections accepted after this call.
+	 * 
+	 * @param metricsEnabled
+	 *            whether to collect metrics.
+	 * @see PacketConnection#setMetricsEnabled(boolean)
+	 */
+	public void setMetricsEnabled(boolean metricsEnabled) {
+		this.metricsEnabled = metricsEnabled;
+	}
+
+	public boolean isPerPacketLatency() {
+		return perPacketLatency;
+	}
+
+	/**
+	 * Sets whether connections accepted after this call record dispatch
+	 * latencies per packet name and ID, and not only in total.
+	 * 
+	 * @param perPacketLatency
+	 *            whether to record latencies per packet name and ID.
+	 * @see ConnectionMetrics#setPerPacketLatency(boolean)
+	 */
+	public void setPerPacketLatency(boolean perPacketLatency) {
+		this.perPacketLatency = perPacketLatency;
+		closedMetrics.setPerPacketLatency(perPacketLatency);
+	}
+
+	/**
+	 * Gets the metrics of every connection this server has accepted, open or
+	 * closed, added together. Queue depths are those of the open connections.
+	 */
+	@Override
+	public MetricsSnapshot getMetricsSnapshot() {
+		ConnectionMetrics total = new ConnectionMetrics();
+		total.setPerPacketLatency(perPacketLatency);
+		total.add(closedMetrics);
+		int connections = 0;
+		long queuedPackets = 0;
+		long queuedWrites = 0;
+		long queuedBytes = 0;
+		for (PacketConnection conn : packetConnections.values()) {
+			connections++;
+			ConnectionMetrics metrics = conn.getMetrics();
+			if (metrics != null)
+				total.add(metrics);
+			else
+				total.getHandOffLatency().add(conn.getHandOffLatency());
+			queuedPackets += conn.getQueuedPacketCount();
+			queuedWrites += conn.getQueuedWriteCount();
+			queuedBytes += conn.getQueuedBytes();
+		}
+		return total.snapshot(connections, queuedPackets, queuedWrites,
+				queuedBytes);
+	}
+
+	public BroadcastPolicy getBroadcastPolicy() {
+		return broadcastPolicy;
+	}
+
+	/**
+	 * Sets what {@link #sendPacket(Packet)} does with connections whose write
+	 * queues are full. Defaults to {@link BroadcastPolicy#WAIT}.
+	 * 
+	 * @param broadcastPolicy
+	 *            the policy to use.
+	 */
+	public void setBroadcastPolicy(BroadcastPolicy broadcastPolicy) {
+		this.broadcastPolicy = broadcastPolicy;
+	}
+
+	/**
+	 * Sends packet to every connection, according to the broadcast policy.
+	 * 
+	 * @param packet
+	 *            the Packet to send.
+	 * @throws IOException
+	 *             if the packet can't be encoded.
+	 * @see #broadcastPacket(Packet, BroadcastPolicy)
+	 */
 	public void sendPacket(Packet packet) throws IOException {
-		Collection<PacketConnection> conns = packetConnections.values();
-		for (PacketConnection conn : conns) {
-			conn.sendPacket(packet);
+		broadcastPacket(packet, broadcastPolicy);
+	}
+
+	/**
+	 * Sends packet to every connection. The packet is encoded once per wire
+	 * format in use, normally exactly once, and the same bytes are handed to
+	 * every connection's write queue, so each connection's writer sends them in
+	 * parallel. Connections whose queues are over their high-water mark are
+	 * dealt with according to policy instead of holding up the rest.
+	 * Connections still in their feature handshake are skipped, or with
+	 * {@link BroadcastPolicy#WAIT} waited for after the full ones.
+	 * 
+	 * @param packet
+	 *            the Packet to send.
+	 * @param policy
+	 *            what to do with full connections.
+	 * @return the number of connections the packet was queued on.
+	 * @throws IOException
+	 *             if the packet can't be encoded.
+	 */
+	public int broadcastPacket(Packet packet, BroadcastPolicy policy)
+			throws IOException {
+		return broadcastPacket(new EncodedPacket(packet, false), policy);
+	}
+
+	/**
+	 * Sends a pre-encoded packet to every connection, according to the
+	 * broadcast policy.
+	 * 
+	 * @param packet
+	 *            the packet to send.
+	 * @throws IOException
+	 *             if the packet can't be encoded.
+	 * @see #broadcastPacket(EncodedPacket, BroadcastPolicy)
+	 */
+	public void sendPacket(EncodedPacket packet) throws IOException {
+		broadcastPacket(packet, broadcastPolicy);
+	}
+
+	/**
+	 * Sends a pre-encoded packet to every connection like
+	 * {@link #broadcastPacket(Packet, BroadcastPolicy)}, queueing its stored
+	 * bytes without encoding or copying them again. With
+	 * {@link BroadcastPolicy#WAIT}, connections still in their feature
+	 * handshake are waited for after the full ones. A connection that closes,
+	 * or whose wire format the packet can't be encoded in, doesn't stop the
+	 * packet going to the others.
+	 * 
+	 * @param encoded
+	 *            the packet to send.
+	 * @param policy
+	 *            what to do with full connections.
+	 * @return the number of connections the packet was queued on.
+	 * @throws IOException
+	 *             if the packet couldn't be encoded in a connection's wire
+	 *             format, once it has been sent to every other connection.
+	 */
+	public int broadcastPacket(EncodedPacket encoded, BroadcastPolicy policy)
+			throws IOException {
+		Packet packet = encoded.getPacket();
+		ArrayList<PacketConnection> full = new ArrayList<PacketConnection>();
+		ArrayList<PacketConnection> handshaking = new ArrayList<PacketConnection>();
+		IOException encodeError = null;
+		int sent = 0;
+		for (PacketConnection conn : packetConnections.values()) {
+			if (!conn.isHandshakeDone()) {
+				handshaking.add(conn);
+				continue;
+			}
+			ByteBuffer data;
+			try {
+				data = encoded.getData(conn.getWireFormat());
+			} catch (IOException e) {
+				if (encodeError == null)
+					encodeError = e;
+				continue;
+			}
+			try {
+				if (conn.offerEncoded(packet, data, null))
+					sent++;
+				else
+					full.add(conn);
+			} catch (IOException e) {
+				// the connection is closing
+			}
+		}
+		if (policy == BroadcastPolicy.WAIT)
+			full.addAll(handshaking);
+		for (PacketConnection conn : full) {
+			switch (policy) {
+			case WAIT:
+				WireFormat format;
+				try {
+					format = conn.getWireFormat();
+				} catch (IOException e) {
+					// the handshake failed
+					break;
+				}
+				ByteBuffer data;
+				try {
+					data = encoded.getData(format);
+				} catch (IOException e) {
+					if (encodeError == null)
+						encodeError = e;
+					break;
+				}
+				try {
+					conn.sendEncoded(packet, data, null);
+					sent++;
+				} catch (IOException e) {
+				}
+				break;
+			case DISCONNECT:
+				conn.stop();
+				break;
+			case SKIP:
+				break;
+			}
 		}
+		if (encodeError != null)
+			throw encodeError;
+		return sent;
 	}
 
 	public void sendPacket(Packet packet, InetAddress ip, int port)
 			throws IOException {
-		packetConnections.get(new SCD(ip, port)).sendPacket(packet);
+		PacketConnection conn = packetConnections.get(new SCD(ip, port));
+		if (conn == null)
+			throw new IOException("No connection to " + ip + ":" + port);
+		conn.sendPacket(packet);
+	}
+
+	public void sendPacket(EncodedPacket packet, InetAddress ip, int port)
+			throws IOException {
+		PacketConnection conn = packetConnections.get(new SCD(ip, port));
+		if (conn == null)
+			throw new IOException("No connection to " + ip + ":" + port);
+		conn.sendPacket(packet);
 	}
 
 	/**
-	 * SDC: Socket Connection Description
+	 * SDC: Socket Connection Description. The address and port are packed
+	 * into two longs and an int, so lookups hash and compare a few primitives
+	 * instead of strings. IPv4 addresses are stored as IPv4-mapped IPv6
+	 * addresses.
 	 * 
 	 * @author kneelawk
 	 *
 	 */
-	protected static class SCD implements Comparable<SCD> {
-		public String address;
-		public int port;
+	protected static final class SCD {
+		public final long high;
+		public final long low;
+		public final int port;
+		protected final int hash;
 
-		public SCD(String address, int port) {
-			this.address = address.substring(address.lastIndexOf('/') + 1,
-					address.length());
+		public SCD(InetAddress address, int port) {
+			byte[] bytes = address.getAddress();
+			long high = 0;
+			long low = 0;
+			if (bytes.length == 4) {
+				low = 0xFFFF00000000L | (bytes[0] & 0xFFL) << 24
+						| (bytes[1] & 0xFFL) << 16 | (bytes[2] & 0xFFL) << 8
+						| bytes[3] & 0xFFL;
+			} else {
+				for (int i = 0; i < 8; i++)
+					high = high << 8 | bytes[i] & 0xFFL;
+				for (int i = 8; i < 16; i++)
+					low = low << 8 | bytes[i] & 0xFFL;
+			}
+			this.high = high;
+			this.low = low;
 			this.port = port;
+			long mixed = (high * 31 + low) * 31 + port;
+			hash = (int) (mixed ^ mixed >>> 32);
 		}
 
-		public SCD(InetAddress address, int port) {
-			String addressStr = address.toString();
-			this.address = addressStr.substring(
-					addressStr.lastIndexOf('/') + 1, addressStr.length());
-			this.port = port;
+		@Override
+		public int hashCode() {
+			return hash;
 		}
 
 		@Override
-		public int compareTo(SCD o) {
-			int result = address.compareTo(o.address);
-			if (result == 0) {
-				if (port > o.port) {
-					return 1;
-				} else if (port < o.port) {
-					return -1;
-				} else {
-					return 0;
-				}
-			}
-			return result;
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof SCD))
+				return false;
+			SCD other = (SCD) o;
+			return low == other.low && port == other.port
+					&& high == other.high;
 		}
 	}
 
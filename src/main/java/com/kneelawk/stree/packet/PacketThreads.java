@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads used by connections and servers.
+ * 
+ * @author kneelawk
+ *
+ */
+public class PacketThreads {
+	/**
+	 * Creates a named thread through factory, or as a plain platform thread if
+	 * factory is null.
+	 * 
+	 * @param factory
+	 *            the factory to use, may be null.
+	 * @param runnable
+	 *            the thread's body.
+	 * @param name
+	 *            the thread's name.
+	 * @return the new, unstarted thread.
+	 */
+	public static Thread newThread(ThreadFactory factory, Runnable runnable,
+			String name) {
+		if (factory == null)
+			return new Thread(runnable, name);
+		Thread thread = factory.newThread(runnable);
+		thread.setName(name);
+		return thread;
+	}
+
+	/**
+	 * Gets a factory creating virtual threads. Virtual threads are only
+	 * available on Java 21 and later, so they are looked up reflectively.
+	 * 
+	 * @return a virtual thread factory.
+	 * @throws UnsupportedOperationException
+	 *             if the running JVM has no virtual threads.
+	 */
+	public static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException(
+					"Virtual threads need Java 21 or later", e);
+		}
+	}
+
+	/**
+	 * @return whether the running JVM supports virtual threads.
+	 */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+}
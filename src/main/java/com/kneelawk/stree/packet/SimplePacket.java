@@ -59,7 +59,7 @@ public class SimplePacket extends Packet {
 
 	@Override
 	public PacketInfoProvider getInfoProvider() {
-		return new SimplePacketInfoProvider();
+		return SimplePacketInfoProvider.INSTANCE;
 	}
 
 	public String toString() {
@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.kneelawk.stree.packet.streamProviders.OutputStreamProvider;
+
+/**
+ * Describes how a connection turns packets into bytes. Connections with equal
+ * wire formats produce identical bytes for the same packet, so a packet only
+ * has to be encoded once to be sent to all of them.
+ * 
+ * @author kneelawk
+ *
+ */
+public class WireFormat {
+	protected boolean framed;
+	protected OutputStreamProvider provider;
+	protected CompactPacketIds ids;
+
+	public WireFormat(boolean framed, OutputStreamProvider provider) {
+		this(framed, provider, null);
+	}
+
+	/**
+	 * @param framed
+	 *            whether packets are length-prefixed frames.
+	 * @param provider
+	 *            the provider packets are encoded through.
+	 * @param ids
+	 *            the compact packet IDs in use, or null for the tree
+	 *            encoding.
+	 */
+	public WireFormat(boolean framed, OutputStreamProvider provider,
+			CompactPacketIds ids) {
+		this.framed = framed;
+		this.provider = provider;
+		this.ids = ids;
+	}
+
+	public boolean isFramed() {
+		return framed;
+	}
+
+	public OutputStreamProvider getProvider() {
+		return provider;
+	}
+
+	public CompactPacketIds getIds() {
+		return ids;
+	}
+
+	/**
+	 * Encodes packet in this format.
+	 * 
+	 * @param packet
+	 *            the Packet to encode.
+	 * @return a buffer holding exactly the encoded packet.
+	 * @throws IOException
+	 */
+	public ByteBuffer encode(Packet packet) throws IOException {
+		byte[] data = PacketIO.encodePacket(packet, provider, ids);
+		if (framed)
+			data = PacketIO.frame(data);
+		return ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * Encodes packet in this format into a buffer from pool, framing it in
+	 * place. Nothing is copied, and with a stateless provider nothing is
+	 * allocated apart from what the packet itself needs to be written.
+	 * 
+	 * @param packet
+	 *            the Packet to encode.
+	 * @param pool
+	 *            the pool to take the buffer from.
+	 * @return a pooled buffer holding exactly the encoded packet from its
+	 *         position to its limit. It should be released to pool once
+	 *         written.
+	 * @throws IOException
+	 */
+	public ByteBuffer encode(Packet packet, ByteBufferPool pool)
+			throws IOException {
+		BufferOutputStream stream = BufferOutputStream.get();
+		stream.begin(pool, framed ? BufferOutputStream.MAX_HEADER_SIZE : 0);
+		try {
+			OutputStream out = provider.getOutputStream(stream);
+			if (out == stream) {
+				PacketIO.writePacket(stream.getDataOutput(), packet, ids);
+			} else {
+				PacketIO.writePacket(out, packet, ids);
+				out.close();
+			}
+			return stream.finish(framed);
+		} finally {
+			stream.discard();
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof WireFormat) {
+			WireFormat other = (WireFormat) o;
+			return framed == other.framed && provider == other.provider
+					&& (ids == null ? other.ids == null : ids.equals(other.ids));
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return (System.identityHashCode(provider) * 31 + (framed ? 1 : 0))
+				* 31 + (ids == null ? 0 : ids.hashCode());
+	}
+}
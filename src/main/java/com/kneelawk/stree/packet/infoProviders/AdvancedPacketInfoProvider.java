@@ -28,9 +28,14 @@ import java.io.IOException;
 
 import com.kneelawk.stree.core.MapSTreeNode;
 import com.kneelawk.stree.packet.AdvancedPacket;
+import com.kneelawk.stree.packet.LazyAdvancedPacket;
 import com.kneelawk.stree.packet.Packet;
 
-public class AdvancedPacketInfoProvider implements PacketInfoProvider {
+public class AdvancedPacketInfoProvider implements LazyPacketInfoProvider {
+	/**
+	 * The shared instance returned by every AdvancedPacket.
+	 */
+	public static final AdvancedPacketInfoProvider INSTANCE = new AdvancedPacketInfoProvider();
 
 	@Override
 	public void write(Packet packet, MapSTreeNode root) throws IOException {
@@ -42,6 +47,11 @@ public class AdvancedPacketInfoProvider implements PacketInfoProvider {
 		return new AdvancedPacket(root);
 	}
 
+	@Override
+	public AdvancedPacket readLazy(byte[] tree) {
+		return new LazyAdvancedPacket(tree);
+	}
+
 	@Override
 	public String getPacketID() {
 		return "advancedPacket";
@@ -33,6 +33,10 @@ import com.kneelawk.stree.packet.BundlePacket;
 import com.kneelawk.stree.packet.Packet;
 
 public class BundlePacketInfoProvider implements PacketInfoProvider {
+	/**
+	 * The shared instance returned by every BundlePacket.
+	 */
+	public static final BundlePacketInfoProvider INSTANCE = new BundlePacketInfoProvider();
 
 	@Override
 	public void write(Packet packet, MapSTreeNode root) throws IOException {
@@ -0,0 +1,47 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.infoProviders;
+
+import com.kneelawk.stree.packet.Packet;
+
+/**
+ * A packet info provider that can make packets whose tree is only decoded
+ * when it's first used. Used for connections with lazy decoding turned on, so
+ * listeners that only look at a packet's name never pay to decode the rest.
+ * 
+ * @author kneelawk
+ *
+ */
+public interface LazyPacketInfoProvider extends PacketInfoProvider {
+	/**
+	 * Makes a packet from its encoded tree without decoding it yet.
+	 * 
+	 * @param tree
+	 *            the STree encoding of the tree {@link #read} would be given.
+	 *            The packet takes ownership of the array.
+	 * @return the packet.
+	 */
+	public Packet readLazy(byte[] tree);
+}
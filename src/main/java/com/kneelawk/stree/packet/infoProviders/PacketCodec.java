@@ -0,0 +1,80 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.infoProviders;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.kneelawk.stree.packet.Packet;
+
+/**
+ * A packet info provider that can also write its packets' fields straight to
+ * a stream and read them back, without building a MapSTreeNode first. Used
+ * for the packets of connections with compact packet IDs when both ends have
+ * a codec for the packet type; otherwise the tree methods are used, so a
+ * codec must still be able to read and write trees.
+ * 
+ * <p>
+ * What {@link #encode(Packet, DataOutput)} writes is the codec's own layout,
+ * not a serialized tree, so it can only be read back by a codec for the same
+ * packet type. The compact encoding flags such packets with the low bit of
+ * their ID, and they are only ever sent to a peer that said in the handshake
+ * that it has a codec for the packet type. A peer whose codec has been
+ * replaced by a provider without one since the handshake still decodes with
+ * the codec it announced and hands the new provider the packet's tree.
+ * </p>
+ * 
+ * <p>
+ * Like every provider, codecs must be stateless.
+ * </p>
+ * 
+ * @author kneelawk
+ *
+ */
+public interface PacketCodec extends PacketInfoProvider {
+	/**
+	 * Writes packet's contents. The packet's ID and name are written
+	 * separately.
+	 * 
+	 * @param packet
+	 *            the packet to write.
+	 * @param out
+	 *            where to write it.
+	 * @throws IOException
+	 */
+	public void encode(Packet packet, DataOutput out) throws IOException;
+
+	/**
+	 * Reads a packet written by {@link #encode(Packet, DataOutput)}. The
+	 * packet's name is set afterwards.
+	 * 
+	 * @param in
+	 *            where to read it from.
+	 * @return the packet read.
+	 * @throws IOException
+	 */
+	public Packet decode(DataInput in) throws IOException;
+}
@@ -29,6 +29,15 @@ import java.io.IOException;
 import com.kneelawk.stree.core.MapSTreeNode;
 import com.kneelawk.stree.packet.Packet;
 
+/**
+ * Reads and writes one kind of packet. Providers must be stateless: every
+ * packet of a class shares the provider returned by the first
+ * {@link Packet#getInfoProvider()} call on that class, see
+ * {@link Packet#infoProviderOf(Packet)}.
+ * 
+ * @author kneelawk
+ *
+ */
 public interface PacketInfoProvider {
 	public void write(Packet packet, MapSTreeNode root) throws IOException;
 
@@ -27,10 +27,15 @@ package com.kneelawk.stree.packet.infoProviders;
 import java.io.IOException;
 
 import com.kneelawk.stree.core.MapSTreeNode;
+import com.kneelawk.stree.packet.LazySimplePacket;
 import com.kneelawk.stree.packet.Packet;
 import com.kneelawk.stree.packet.SimplePacket;
 
-public class SimplePacketInfoProvider implements PacketInfoProvider {
+public class SimplePacketInfoProvider implements LazyPacketInfoProvider {
+	/**
+	 * The shared instance returned by every SimplePacket.
+	 */
+	public static final SimplePacketInfoProvider INSTANCE = new SimplePacketInfoProvider();
 
 	@Override
 	public void write(Packet packet, MapSTreeNode root) throws IOException {
@@ -43,6 +48,11 @@ public class SimplePacketInfoProvider implements PacketInfoProvider {
 		return new SimplePacket(root.get("packetData"));
 	}
 
+	@Override
+	public SimplePacket readLazy(byte[] tree) {
+		return new LazySimplePacket(tree);
+	}
+
 	@Override
 	public String getPacketID() {
 		return "simplePacket";
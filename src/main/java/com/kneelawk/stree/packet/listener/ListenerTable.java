@@ -0,0 +1,204 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.listener;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.kneelawk.stree.packet.Packet;
+
+/**
+ * An immutable table of packet listeners, compiled so that finding every
+ * listener for a packet name takes one hash lookup. Each name maps straight
+ * to an array of the listeners for all packets followed by those for that
+ * name. Changes return a new table, so dispatch never locks and never sees a
+ * table being modified.
+ * 
+ * @author kneelawk
+ *
+ */
+public final class ListenerTable {
+	public static final ListenerTable EMPTY = new ListenerTable(
+			new PacketListener[0], new HashMap<String, PacketListener[]>());
+
+	private final PacketListener[] listeners;
+	private final Map<String, PacketListener[]> named;
+	private final Map<String, PacketListener[]> dispatch;
+
+	private ListenerTable(PacketListener[] listeners,
+			HashMap<String, PacketListener[]> named) {
+		this.listeners = listeners;
+		this.named = named;
+		HashMap<String, PacketListener[]> dispatch = new HashMap<String, PacketListener[]>();
+		for (Map.Entry<String, PacketListener[]> entry : named.entrySet()) {
+			PacketListener[] forName = entry.getValue();
+			PacketListener[] all = Arrays.copyOf(listeners, listeners.length
+					+ forName.length);
+			System.arraycopy(forName, 0, all, listeners.length,
+					forName.length);
+			dispatch.put(entry.getKey(), all);
+		}
+		this.dispatch = dispatch;
+	}
+
+	/**
+	 * Hands packet to every listener for all packets, then to every listener
+	 * for its name, in the order they were added.
+	 * 
+	 * @param packet
+	 *            the received packet.
+	 */
+	public void dispatch(Packet packet) {
+		String name = packet.name;
+		PacketListener[] targets = dispatch.get(name);
+		if (targets == null)
+			targets = listeners;
+		for (PacketListener listener : targets) {
+			listener.onReceivePacket(name, packet);
+		}
+	}
+
+	/**
+	 * @param name
+	 *            a packet name.
+	 * @return every listener a packet with that name is handed to, in order.
+	 */
+	public PacketListener[] getListeners(String name) {
+		PacketListener[] targets = dispatch.get(name);
+		return (targets != null ? targets : listeners).clone();
+	}
+
+	/**
+	 * Gets the same listeners as {@link #getListeners(String)} without
+	 * copying them, for dispatching packets.
+	 * 
+	 * @param name
+	 *            a packet name.
+	 * @return the table's own array of listeners, which must not be modified.
+	 */
+	public PacketListener[] getSharedListeners(String name) {
+		PacketListener[] targets = dispatch.get(name);
+		return targets != null ? targets : listeners;
+	}
+
+	public boolean isEmpty() {
+		return listeners.length == 0 && named.isEmpty();
+	}
+
+	/**
+	 * @param listener
+	 *            a listener for all packets.
+	 * @return a table with listener added after the existing ones.
+	 */
+	public ListenerTable withListener(PacketListener listener) {
+		return new ListenerTable(add(listeners, listener),
+				new HashMap<String, PacketListener[]>(named));
+	}
+
+	/**
+	 * @param listener
+	 *            a listener for all packets.
+	 * @return a table with the first occurrence of listener removed, or this
+	 *         table if it has no such listener.
+	 */
+	public ListenerTable withoutListener(PacketListener listener) {
+		PacketListener[] removed = remove(listeners, listener);
+		if (removed == listeners)
+			return this;
+		return new ListenerTable(removed, new HashMap<String, PacketListener[]>(
+				named));
+	}
+
+	/**
+	 * @param listener
+	 *            a listener for packets with the given names.
+	 * @param names
+	 *            the packet names to listen for.
+	 * @return a table with listener added for each name.
+	 */
+	public ListenerTable withListenerForNames(PacketListener listener,
+			String... names) {
+		HashMap<String, PacketListener[]> named = new HashMap<String, PacketListener[]>(
+				this.named);
+		for (String name : names) {
+			PacketListener[] forName = named.get(name);
+			named.put(name, add(forName != null ? forName
+					: new PacketListener[0], listener));
+		}
+		return new ListenerTable(listeners, named);
+	}
+
+	/**
+	 * @param listener
+	 *            a listener for packets with the given names.
+	 * @param names
+	 *            the packet names to stop listening for.
+	 * @return a table with listener removed for each name, or this table if
+	 *         it isn't listening for any of them.
+	 */
+	public ListenerTable withoutListenerForNames(PacketListener listener,
+			String... names) {
+		HashMap<String, PacketListener[]> named = null;
+		for (String name : names) {
+			PacketListener[] forName = (named != null ? named : this.named)
+					.get(name);
+			if (forName == null)
+				continue;
+			PacketListener[] removed = remove(forName, listener);
+			if (removed == forName)
+				continue;
+			if (named == null)
+				named = new HashMap<String, PacketListener[]>(this.named);
+			if (removed.length == 0)
+				named.remove(name);
+			else
+				named.put(name, removed);
+		}
+		if (named == null)
+			return this;
+		return new ListenerTable(listeners, named);
+	}
+
+	private static PacketListener[] add(PacketListener[] array,
+			PacketListener listener) {
+		PacketListener[] added = Arrays.copyOf(array, array.length + 1);
+		added[array.length] = listener;
+		return added;
+	}
+
+	private static PacketListener[] remove(PacketListener[] array,
+			PacketListener listener) {
+		for (int i = 0; i < array.length; i++) {
+			if (array[i].equals(listener)) {
+				PacketListener[] removed = new PacketListener[array.length - 1];
+				System.arraycopy(array, 0, removed, 0, i);
+				System.arraycopy(array, i + 1, removed, i, removed.length - i);
+				return removed;
+			}
+		}
+		return array;
+	}
+}
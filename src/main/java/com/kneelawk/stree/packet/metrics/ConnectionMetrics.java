@@ -0,0 +1,324 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kneelawk.stree.packet.Packet;
+
+/**
+ * Live counters and latency histograms for a connection, or for a whole
+ * server once merged. Packets are counted in total, per packet name and per
+ * packet ID. Recording never allocates once a name or ID has been seen.
+ * 
+ * <p>
+ * Packet names come from the peer, so at most {@link #DEFAULT_MAX_KEYS}
+ * names and as many IDs are tracked separately. Packets with any name or ID
+ * beyond that are counted under {@link #OTHER} instead. Only the totals
+ * keep a latency histogram unless {@link #setPerPacketLatency(boolean)} is
+ * turned on, as each histogram takes a few kilobytes.
+ * </p>
+ * 
+ * <p>
+ * Packet and byte counts in and out are of encoded packets as they are
+ * queued and dispatched. The bytes read and written are what actually went
+ * over the socket, after any connection-wide compression and including
+ * frame headers and the handshake.
+ * </p>
+ * 
+ * @author kneelawk
+ *
+ */
+public class ConnectionMetrics {
+	public static final int DEFAULT_MAX_KEYS = 256;
+
+	/**
+	 * The name and ID that packets are counted under once the limit on
+	 * distinct names or IDs has been reached.
+	 */
+	public static final String OTHER = "(other)";
+
+	protected int maxKeys = DEFAULT_MAX_KEYS;
+	protected boolean perPacketLatency = false;
+	protected PacketMetrics totals = new PacketMetrics();
+	protected ConcurrentHashMap<String, PacketMetrics> byName = new ConcurrentHashMap<String, PacketMetrics>();
+	protected ConcurrentHashMap<String, PacketMetrics> byId = new ConcurrentHashMap<String, PacketMetrics>();
+	protected AtomicLong bytesRead = new AtomicLong();
+	protected AtomicLong bytesWritten = new AtomicLong();
+	protected AtomicLong readErrors = new AtomicLong();
+	protected AtomicLong decodeErrors = new AtomicLong();
+	protected AtomicLong writeErrors = new AtomicLong();
+	protected AtomicLong droppedPackets = new AtomicLong();
+	protected LatencyHistogram handOffLatency;
+
+	public ConnectionMetrics() {
+		this(new LatencyHistogram());
+	}
+
+	/**
+	 * @param handOffLatency
+	 *            the histogram the connection already records hand-off
+	 *            latencies in.
+	 */
+	public ConnectionMetrics(LatencyHistogram handOffLatency) {
+		this.handOffLatency = handOffLatency;
+	}
+
+	/**
+	 * Sets how many distinct packet names, and separately how many packet
+	 * IDs, get metrics of their own. The rest are counted under
+	 * {@link #OTHER}. Names and IDs already tracked keep their metrics.
+	 * 
+	 * @param maxKeys
+	 *            the most names or IDs to track separately.
+	 */
+	public void setMaxKeys(int maxKeys) {
+		this.maxKeys = maxKeys;
+	}
+
+	public int getMaxKeys() {
+		return maxKeys;
+	}
+
+	/**
+	 * Sets whether each packet name and ID gets a dispatch latency histogram
+	 * of its own, which is off by default. Names and IDs already tracked keep
+	 * whatever they had.
+	 * 
+	 * @param perPacketLatency
+	 *            whether to record latencies per packet name and ID.
+	 */
+	public void setPerPacketLatency(boolean perPacketLatency) {
+		this.perPacketLatency = perPacketLatency;
+	}
+
+	public boolean isPerPacketLatency() {
+		return perPacketLatency;
+	}
+
+	/**
+	 * Records a packet that was received and handed to listeners.
+	 * 
+	 * @param packet
+	 *            the packet.
+	 * @param bytes
+	 *            the encoded size of the packet, or 0 if unknown.
+	 * @param dispatchNanos
+	 *            the time the listeners took.
+	 */
+	public void packetDispatched(Packet packet, int bytes, long dispatchNanos) {
+		totals.dispatched(bytes, dispatchNanos);
+		forName(packet.name).dispatched(bytes, dispatchNanos);
+		forId(Packet.infoProviderOf(packet).getPacketID()).dispatched(bytes,
+				dispatchNanos);
+	}
+
+	/**
+	 * Records a packet that was queued to be sent.
+	 * 
+	 * @param packet
+	 *            the packet, or null if only its encoded bytes are known.
+	 * @param bytes
+	 *            the encoded size of the packet.
+	 */
+	public void packetSent(Packet packet, int bytes) {
+		totals.sent(bytes);
+		if (packet != null) {
+			forName(packet.name).sent(bytes);
+			forId(Packet.infoProviderOf(packet).getPacketID()).sent(bytes);
+		}
+	}
+
+	public void bytesRead(long bytes) {
+		bytesRead.addAndGet(bytes);
+	}
+
+	public void bytesWritten(long bytes) {
+		bytesWritten.addAndGet(bytes);
+	}
+
+	/**
+	 * Records an I/O error while reading that didn't close the connection.
+	 */
+	public void readError() {
+		readErrors.incrementAndGet();
+	}
+
+	/**
+	 * Records a packet that was received but couldn't be decoded.
+	 */
+	public void decodeError() {
+		decodeErrors.incrementAndGet();
+	}
+
+	/**
+	 * Records an I/O error while writing.
+	 */
+	public void writeError() {
+		writeErrors.incrementAndGet();
+	}
+
+	/**
+	 * Records a received packet dropped because the inbound queue was full.
+	 */
+	public void packetDropped() {
+		droppedPackets.incrementAndGet();
+	}
+
+	/**
+	 * Gets the metrics for one packet name, creating them if necessary.
+	 * 
+	 * @param name
+	 *            the packet name.
+	 * @return the live metrics for that name, or for {@link #OTHER} if too
+	 *         many names are already tracked.
+	 */
+	public PacketMetrics forName(String name) {
+		return get(byName, name);
+	}
+
+	/**
+	 * Gets the metrics for one packet ID, creating them if necessary.
+	 * 
+	 * @param id
+	 *            the packet ID.
+	 * @return the live metrics for that ID, or for {@link #OTHER} if too many
+	 *         IDs are already tracked.
+	 */
+	public PacketMetrics forId(String id) {
+		return get(byId, id);
+	}
+
+	private PacketMetrics get(ConcurrentHashMap<String, PacketMetrics> map,
+			String key) {
+		if (key == null)
+			key = "";
+		PacketMetrics metrics = map.get(key);
+		if (metrics == null) {
+			// racing threads can overshoot the limit by a few entries
+			if (map.size() >= maxKeys) {
+				key = OTHER;
+				metrics = map.get(key);
+				if (metrics != null)
+					return metrics;
+			}
+			metrics = new PacketMetrics(perPacketLatency);
+			PacketMetrics existing = map.putIfAbsent(key, metrics);
+			if (existing != null)
+				metrics = existing;
+		}
+		return metrics;
+	}
+
+	/**
+	 * Adds every count recorded by other to these metrics, e.g. to keep the
+	 * totals of a connection that has closed.
+	 * 
+	 * @param other
+	 *            the metrics to merge in.
+	 */
+	public void add(ConnectionMetrics other) {
+		totals.add(other.totals);
+		for (Map.Entry<String, PacketMetrics> entry : other.byName.entrySet())
+			forName(entry.getKey()).add(entry.getValue());
+		for (Map.Entry<String, PacketMetrics> entry : other.byId.entrySet())
+			forId(entry.getKey()).add(entry.getValue());
+		bytesRead.addAndGet(other.bytesRead.get());
+		bytesWritten.addAndGet(other.bytesWritten.get());
+		readErrors.addAndGet(other.readErrors.get());
+		decodeErrors.addAndGet(other.decodeErrors.get());
+		writeErrors.addAndGet(other.writeErrors.get());
+		droppedPackets.addAndGet(other.droppedPackets.get());
+		handOffLatency.add(other.handOffLatency);
+	}
+
+	public PacketMetrics getTotals() {
+		return totals;
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public long getReadErrors() {
+		return readErrors.get();
+	}
+
+	public long getDecodeErrors() {
+		return decodeErrors.get();
+	}
+
+	public long getWriteErrors() {
+		return writeErrors.get();
+	}
+
+	public long getDroppedPackets() {
+		return droppedPackets.get();
+	}
+
+	public LatencyHistogram getHandOffLatency() {
+		return handOffLatency;
+	}
+
+	/**
+	 * Copies these metrics into an immutable snapshot.
+	 * 
+	 * @param connections
+	 *            the number of open connections the metrics cover.
+	 * @param queuedPackets
+	 *            the number of packets waiting to be dispatched.
+	 * @param queuedWrites
+	 *            the number of packets waiting to be written.
+	 * @param queuedBytes
+	 *            the number of encoded bytes waiting to be written.
+	 * @return the snapshot.
+	 */
+	public MetricsSnapshot snapshot(int connections, long queuedPackets,
+			long queuedWrites, long queuedBytes) {
+		return new MetricsSnapshot(connections, totals.getPacketsIn(),
+				totals.getPacketsOut(), totals.getBytesIn(),
+				totals.getBytesOut(), getBytesRead(), getBytesWritten(),
+				getReadErrors(), getDecodeErrors(), getWriteErrors(),
+				getDroppedPackets(), queuedPackets, queuedWrites, queuedBytes,
+				handOffLatency.snapshot(), totals.getDispatchLatency()
+						.snapshot(), snapshot(byName), snapshot(byId));
+	}
+
+	private static SortedMap<String, PacketMetricsSnapshot> snapshot(
+			ConcurrentHashMap<String, PacketMetrics> map) {
+		TreeMap<String, PacketMetricsSnapshot> snapshots = new TreeMap<String, PacketMetricsSnapshot>();
+		for (Map.Entry<String, PacketMetrics> entry : map.entrySet())
+			snapshots.put(entry.getKey(), entry.getValue().snapshot());
+		return snapshots;
+	}
+}
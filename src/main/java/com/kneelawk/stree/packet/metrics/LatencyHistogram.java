@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of nanosecond latencies. Values are
+ * bucketed by their power of two with 8 linear sub-buckets each, so every
+ * reported percentile is within 12.5% of the true value. Recording never
+ * allocates.
+ * 
+ * @author kneelawk
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	protected AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	protected AtomicLong count = new AtomicLong();
+	protected AtomicLong total = new AtomicLong();
+	protected AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a single latency.
+	 * 
+	 * @param nanos
+	 *            the latency in nanoseconds. Negative values are recorded as
+	 *            0.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(indexOf(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long prev;
+		while (nanos > (prev = max.get())) {
+			if (max.compareAndSet(prev, nanos))
+				break;
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long c = count.get();
+		return c == 0 ? 0 : (double) total.get() / c;
+	}
+
+	/**
+	 * Gets the latency at or below which the given fraction of all recorded
+	 * values lie.
+	 * 
+	 * @param fraction
+	 *            a value between 0 and 1, e.g. 0.99 for the 99th percentile.
+	 * @return the upper bound of the bucket containing the percentile, in
+	 *         nanoseconds, or 0 if nothing has been recorded.
+	 */
+	public long getPercentile(double fraction) {
+		long c = count.get();
+		if (c == 0)
+			return 0;
+		long target = (long) Math.ceil(c * fraction);
+		if (target < 1)
+			target = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(upperBoundOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Adds every value recorded by other to this histogram.
+	 * 
+	 * @param other
+	 *            the histogram to merge in.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if (c != 0)
+				counts.addAndGet(i, c);
+		}
+		count.addAndGet(other.count.get());
+		total.addAndGet(other.total.get());
+		long nanos = other.max.get();
+		long prev;
+		while (nanos > (prev = max.get())) {
+			if (max.compareAndSet(prev, nanos))
+				break;
+		}
+	}
+
+	/**
+	 * @return the current count, mean, max and common percentiles.
+	 */
+	public LatencySnapshot snapshot() {
+		return new LatencySnapshot(getCount(), getMean(), getPercentile(0.5),
+				getPercentile(0.9), getPercentile(0.99), getPercentile(0.999),
+				getMax());
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.SortedMap;
+
+/**
+ * An immutable copy of the metrics of a connection or a whole server, as
+ * returned by {@link MetricsSource#getMetricsSnapshot()}. Latencies are in
+ * nanoseconds.
+ * 
+ * @author kneelawk
+ *
+ */
+public class MetricsSnapshot {
+	protected int connections;
+	protected long packetsIn;
+	protected long packetsOut;
+	protected long bytesIn;
+	protected long bytesOut;
+	protected long bytesRead;
+	protected long bytesWritten;
+	protected long readErrors;
+	protected long decodeErrors;
+	protected long writeErrors;
+	protected long droppedPackets;
+	protected long queuedPackets;
+	protected long queuedWrites;
+	protected long queuedBytes;
+	protected LatencySnapshot handOffLatency;
+	protected LatencySnapshot dispatchLatency;
+	protected SortedMap<String, PacketMetricsSnapshot> byName;
+	protected SortedMap<String, PacketMetricsSnapshot> byId;
+
+	@ConstructorProperties({ "connections", "packetsIn", "packetsOut",
+			"bytesIn", "bytesOut", "bytesRead", "bytesWritten", "readErrors",
+			"decodeErrors", "writeErrors", "droppedPackets", "queuedPackets",
+			"queuedWrites", "queuedBytes", "handOffLatency",
+			"dispatchLatency", "byName", "byId" })
+	public MetricsSnapshot(int connections, long packetsIn, long packetsOut,
+			long bytesIn, long bytesOut, long bytesRead, long bytesWritten,
+			long readErrors, long decodeErrors, long writeErrors,
+			long droppedPackets, long queuedPackets, long queuedWrites,
+			long queuedBytes,
+			LatencySnapshot handOffLatency, LatencySnapshot dispatchLatency,
+			SortedMap<String, PacketMetricsSnapshot> byName,
+			SortedMap<String, PacketMetricsSnapshot> byId) {
+		this.connections = connections;
+		this.packetsIn = packetsIn;
+		this.packetsOut = packetsOut;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.bytesRead = bytesRead;
+		this.bytesWritten = bytesWritten;
+		this.readErrors = readErrors;
+		this.decodeErrors = decodeErrors;
+		this.writeErrors = writeErrors;
+		this.droppedPackets = droppedPackets;
+		this.queuedPackets = queuedPackets;
+		this.queuedWrites = queuedWrites;
+		this.queuedBytes = queuedBytes;
+		this.handOffLatency = handOffLatency;
+		this.dispatchLatency = dispatchLatency;
+		this.byName = byName;
+		this.byId = byId;
+	}
+
+	/**
+	 * @return the number of open connections covered.
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * @return the number of packets received and dispatched.
+	 */
+	public long getPacketsIn() {
+		return packetsIn;
+	}
+
+	/**
+	 * @return the number of packets queued to be sent.
+	 */
+	public long getPacketsOut() {
+		return packetsOut;
+	}
+
+	/**
+	 * @return the encoded size of the packets received.
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * @return the encoded size of the packets sent.
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * @return the number of bytes read from the socket.
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return the number of bytes written to the socket.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * @return the number of I/O errors while reading.
+	 */
+	public long getReadErrors() {
+		return readErrors;
+	}
+
+	/**
+	 * @return the number of packets that couldn't be decoded.
+	 */
+	public long getDecodeErrors() {
+		return decodeErrors;
+	}
+
+	/**
+	 * @return the number of I/O errors while writing.
+	 */
+	public long getWriteErrors() {
+		return writeErrors;
+	}
+
+	/**
+	 * @return the number of received packets dropped because an inbound
+	 *         queue was full.
+	 */
+	public long getDroppedPackets() {
+		return droppedPackets;
+	}
+
+	/**
+	 * @return the number of packets waiting to be dispatched.
+	 */
+	public long getQueuedPackets() {
+		return queuedPackets;
+	}
+
+	/**
+	 * @return the number of packets waiting to be written.
+	 */
+	public long getQueuedWrites() {
+		return queuedWrites;
+	}
+
+	/**
+	 * @return the number of encoded bytes waiting to be written.
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * @return the time between reading packets and dispatching them.
+	 */
+	public LatencySnapshot getHandOffLatency() {
+		return handOffLatency;
+	}
+
+	/**
+	 * @return the time listeners took per packet.
+	 */
+	public LatencySnapshot getDispatchLatency() {
+		return dispatchLatency;
+	}
+
+	/**
+	 * @return the metrics per packet name.
+	 */
+	public SortedMap<String, PacketMetricsSnapshot> getByName() {
+		return byName;
+	}
+
+	/**
+	 * @return the metrics per packet ID.
+	 */
+	public SortedMap<String, PacketMetricsSnapshot> getById() {
+		return byId;
+	}
+
+	public String toString() {
+		return "connections=" + connections + " in=" + packetsIn + " ("
+				+ bytesIn + "B) out=" + packetsOut + " (" + bytesOut
+				+ "B) read=" + bytesRead + "B written=" + bytesWritten
+				+ "B errors=" + readErrors + "/" + decodeErrors + "/"
+				+ writeErrors + " dropped=" + droppedPackets + " queued="
+				+ queuedPackets + "/" + queuedWrites + " hand-off["
+				+ handOffLatency + "] dispatch[" + dispatchLatency + "]";
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters for one kind of packet, either one packet name or one packet
+ * ID. Updating them never allocates. A latency histogram takes a few
+ * kilobytes, so it can be left out where there may be many of them.
+ * 
+ * @author kneelawk
+ *
+ */
+public class PacketMetrics {
+	protected AtomicLong packetsIn = new AtomicLong();
+	protected AtomicLong packetsOut = new AtomicLong();
+	protected AtomicLong bytesIn = new AtomicLong();
+	protected AtomicLong bytesOut = new AtomicLong();
+	protected LatencyHistogram dispatchLatency;
+
+	public PacketMetrics() {
+		this(true);
+	}
+
+	/**
+	 * @param recordLatency
+	 *            whether to keep a histogram of dispatch latencies.
+	 */
+	public PacketMetrics(boolean recordLatency) {
+		if (recordLatency)
+			dispatchLatency = new LatencyHistogram();
+	}
+
+	/**
+	 * Records a packet that was received and handed to listeners.
+	 * 
+	 * @param bytes
+	 *            the encoded size of the packet, or 0 if unknown.
+	 * @param dispatchNanos
+	 *            the time the listeners took.
+	 */
+	public void dispatched(int bytes, long dispatchNanos) {
+		packetsIn.incrementAndGet();
+		bytesIn.addAndGet(bytes);
+		if (dispatchLatency != null)
+			dispatchLatency.record(dispatchNanos);
+	}
+
+	/**
+	 * Records a packet that was queued to be sent.
+	 * 
+	 * @param bytes
+	 *            the encoded size of the packet.
+	 */
+	public void sent(int bytes) {
+		packetsOut.incrementAndGet();
+		bytesOut.addAndGet(bytes);
+	}
+
+	/**
+	 * Adds every count recorded by other to these metrics. Latencies are only
+	 * added if both keep them.
+	 * 
+	 * @param other
+	 *            the metrics to merge in.
+	 */
+	public void add(PacketMetrics other) {
+		packetsIn.addAndGet(other.packetsIn.get());
+		packetsOut.addAndGet(other.packetsOut.get());
+		bytesIn.addAndGet(other.bytesIn.get());
+		bytesOut.addAndGet(other.bytesOut.get());
+		if (dispatchLatency != null && other.dispatchLatency != null)
+			dispatchLatency.add(other.dispatchLatency);
+	}
+
+	public long getPacketsIn() {
+		return packetsIn.get();
+	}
+
+	public long getPacketsOut() {
+		return packetsOut.get();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * @return the time listeners took to handle each packet, in nanoseconds,
+	 *         or null if it isn't recorded.
+	 */
+	public LatencyHistogram getDispatchLatency() {
+		return dispatchLatency;
+	}
+
+	public PacketMetricsSnapshot snapshot() {
+		return new PacketMetricsSnapshot(getPacketsIn(), getPacketsOut(),
+				getBytesIn(), getBytesOut(),
+				dispatchLatency != null ? dispatchLatency.snapshot() : null);
+	}
+}
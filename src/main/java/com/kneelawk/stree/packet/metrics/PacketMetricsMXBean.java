@@ -0,0 +1,68 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.metrics;
+
+import java.util.SortedMap;
+
+/**
+ * The JMX view of a {@link MetricsSource}. The top level attributes are the
+ * ones worth graphing; the per name and per ID breakdowns are tables.
+ * 
+ * @author kneelawk
+ *
+ */
+public interface PacketMetricsMXBean {
+	public MetricsSnapshot getSnapshot();
+
+	public int getConnections();
+
+	public long getPacketsIn();
+
+	public long getPacketsOut();
+
+	public long getBytesRead();
+
+	public long getBytesWritten();
+
+	public long getReadErrors();
+
+	public long getDecodeErrors();
+
+	public long getWriteErrors();
+
+	public long getDroppedPackets();
+
+	public long getQueuedPackets();
+
+	public long getQueuedBytes();
+
+	public long getHandOffLatency99();
+
+	public long getDispatchLatency99();
+
+	public SortedMap<String, PacketMetricsSnapshot> getPacketsByName();
+
+	public SortedMap<String, PacketMetricsSnapshot> getPacketsById();
+}
@@ -0,0 +1,83 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable copy of a {@link PacketMetrics}.
+ * 
+ * @author kneelawk
+ *
+ */
+public class PacketMetricsSnapshot {
+	protected long packetsIn;
+	protected long packetsOut;
+	protected long bytesIn;
+	protected long bytesOut;
+	protected LatencySnapshot dispatchLatency;
+
+	@ConstructorProperties({ "packetsIn", "packetsOut", "bytesIn", "bytesOut",
+			"dispatchLatency" })
+	public PacketMetricsSnapshot(long packetsIn, long packetsOut,
+			long bytesIn, long bytesOut, LatencySnapshot dispatchLatency) {
+		this.packetsIn = packetsIn;
+		this.packetsOut = packetsOut;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.dispatchLatency = dispatchLatency;
+	}
+
+	public long getPacketsIn() {
+		return packetsIn;
+	}
+
+	public long getPacketsOut() {
+		return packetsOut;
+	}
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * @return the dispatch latencies, or null if they weren't recorded.
+	 */
+	public LatencySnapshot getDispatchLatency() {
+		return dispatchLatency;
+	}
+
+	public String toString() {
+		String counts = "in=" + packetsIn + " (" + bytesIn + "B) out="
+				+ packetsOut + " (" + bytesOut + "B)";
+		if (dispatchLatency == null)
+			return counts;
+		return counts + " dispatch[" + dispatchLatency + "]";
+	}
+}
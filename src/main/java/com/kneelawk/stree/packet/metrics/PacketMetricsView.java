@@ -0,0 +1,195 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Exposes a {@link MetricsSource} over JMX. Nothing is computed unless
+ * someone is looking: an attribute read takes a snapshot, which later reads
+ * reuse until it is older than the maximum age, so a tool reading every
+ * attribute at once only takes one.
+ * 
+ * <pre>
+ * PacketMetricsView.register(server, new ObjectName(
+ * 		&quot;com.kneelawk.stree.packet:type=Server,name=game&quot;));
+ * </pre>
+ * 
+ * @author kneelawk
+ *
+ */
+public class PacketMetricsView implements PacketMetricsMXBean {
+	public static final long DEFAULT_MAX_AGE_MILLIS = 1000;
+
+	protected MetricsSource source;
+	protected long maxAgeNanos = TimeUnit.MILLISECONDS
+			.toNanos(DEFAULT_MAX_AGE_MILLIS);
+	protected MetricsSnapshot snapshot;
+	protected long snapshotTime;
+
+	public PacketMetricsView(MetricsSource source) {
+		this.source = source;
+	}
+
+	/**
+	 * Registers a view of source with the platform MBean server.
+	 * 
+	 * @param source
+	 *            the connection or server to expose.
+	 * @param name
+	 *            the name to register it under.
+	 * @return the view that was registered.
+	 * @throws JMException
+	 *             if the name is taken or invalid.
+	 */
+	public static PacketMetricsView register(MetricsSource source,
+			ObjectName name) throws JMException {
+		PacketMetricsView view = new PacketMetricsView(source);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(view, name);
+		return view;
+	}
+
+	/**
+	 * Removes a view registered with
+	 * {@link #register(MetricsSource, ObjectName)}.
+	 * 
+	 * @param name
+	 *            the name it was registered under.
+	 * @throws JMException
+	 *             if nothing is registered under name.
+	 */
+	public static void unregister(ObjectName name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	}
+
+	public long getMaxAge(TimeUnit unit) {
+		return unit.convert(maxAgeNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets how long a snapshot is reused for. Defaults to
+	 * {@link #DEFAULT_MAX_AGE_MILLIS}.
+	 * 
+	 * @param maxAge
+	 *            the longest a snapshot is reused for, or 0 to take a new one
+	 *            for every read.
+	 * @param unit
+	 *            the unit of maxAge.
+	 */
+	public synchronized void setMaxAge(long maxAge, TimeUnit unit) {
+		maxAgeNanos = unit.toNanos(maxAge);
+		snapshot = null;
+	}
+
+	@Override
+	public synchronized MetricsSnapshot getSnapshot() {
+		long now = System.nanoTime();
+		if (snapshot == null || now - snapshotTime >= maxAgeNanos) {
+			snapshot = source.getMetricsSnapshot();
+			snapshotTime = now;
+		}
+		return snapshot;
+	}
+
+	@Override
+	public int getConnections() {
+		return getSnapshot().getConnections();
+	}
+
+	@Override
+	public long getPacketsIn() {
+		return getSnapshot().getPacketsIn();
+	}
+
+	@Override
+	public long getPacketsOut() {
+		return getSnapshot().getPacketsOut();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return getSnapshot().getBytesRead();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return getSnapshot().getBytesWritten();
+	}
+
+	@Override
+	public long getReadErrors() {
+		return getSnapshot().getReadErrors();
+	}
+
+	@Override
+	public long getDecodeErrors() {
+		return getSnapshot().getDecodeErrors();
+	}
+
+	@Override
+	public long getWriteErrors() {
+		return getSnapshot().getWriteErrors();
+	}
+
+	@Override
+	public long getDroppedPackets() {
+		return getSnapshot().getDroppedPackets();
+	}
+
+	@Override
+	public long getQueuedPackets() {
+		return getSnapshot().getQueuedPackets();
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		return getSnapshot().getQueuedBytes();
+	}
+
+	@Override
+	public long getHandOffLatency99() {
+		return getSnapshot().getHandOffLatency().getP99();
+	}
+
+	@Override
+	public long getDispatchLatency99() {
+		return getSnapshot().getDispatchLatency().getP99();
+	}
+
+	@Override
+	public SortedMap<String, PacketMetricsSnapshot> getPacketsByName() {
+		return getSnapshot().getByName();
+	}
+
+	@Override
+	public SortedMap<String, PacketMetricsSnapshot> getPacketsById() {
+		return getSnapshot().getById();
+	}
+}
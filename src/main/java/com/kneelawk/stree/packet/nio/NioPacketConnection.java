@@ -0,0 +1,565 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.kneelawk.stree.packet.CompactPacketIds;
+import com.kneelawk.stree.packet.Packet;
+import com.kneelawk.stree.packet.PacketConnection;
+import com.kneelawk.stree.packet.PacketIO;
+import com.kneelawk.stree.packet.streamProviders.ConnectionInputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.ConnectionOutputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.InputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.OutputStreamProvider;
+
+/**
+ * A PacketConnection driven by a shared {@link SelectorLoop} instead of its
+ * own reader and dispatcher threads. Packets are always framed. Reads and
+ * writes happen on the loop's thread, while frames are decoded and listeners
+ * are run on a shared executor, one batch at a time per connection so packets
+ * are still delivered in order.
+ * 
+ * @author kneelawk
+ *
+ */
+public class NioPacketConnection extends PacketConnection {
+	/**
+	 * The size of each connection's own read buffer. While a larger frame is
+	 * received, it is swapped for a pooled buffer that grows as the frame
+	 * arrives, and swapped back once the frame has been read.
+	 */
+	public static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * The maximum number of queued buffers written with a single gathering
+	 * write.
+	 */
+	public static final int WRITE_BATCH_SIZE = 16;
+
+	protected SocketChannel channel;
+	protected SelectorLoop loop;
+	protected Executor dispatchExecutor;
+	protected SelectionKey key;
+	protected ByteBuffer readBuffer;
+	protected ByteBuffer baseReadBuffer;
+	protected AtomicBoolean writeScheduled = new AtomicBoolean();
+	protected AtomicBoolean dispatchScheduled = new AtomicBoolean();
+	protected ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE * 2];
+	protected ArrayList<OutgoingPacket> writing = new ArrayList<OutgoingPacket>(
+			WRITE_BATCH_SIZE);
+	protected boolean awaitingHandshake = false;
+	protected ByteBuffer handshakeReply;
+	protected volatile boolean readPaused = false;
+	protected Runnable dispatchTask = new Runnable() {
+		@Override
+		public void run() {
+			dispatchQueued();
+		}
+	};
+	protected Runnable enableWriteTask = new Runnable() {
+		@Override
+		public void run() {
+			if (key != null && key.isValid())
+				key.interestOps(readOps() | SelectionKey.OP_WRITE);
+		}
+	};
+	protected Runnable handshakeTimeoutTask = new Runnable() {
+		@Override
+		public void run() {
+			if (!awaitingHandshake)
+				return;
+			if (readBuffer.position() == 0) {
+				// the client hasn't said anything, so it isn't going to
+				awaitingHandshake = false;
+				applyFeatures(0);
+				handshakeDone.countDown();
+				if (!writeQueue.isEmpty())
+					enableWriteTask.run();
+			} else {
+				// the client started the handshake and stalled
+				awaitingHandshake = false;
+				readBuffer.clear();
+				onChannelClosed();
+			}
+		}
+	};
+	protected Runnable resumeReadTask = new Runnable() {
+		@Override
+		public void run() {
+			if (readPaused && !isInboundFull(0)) {
+				readPaused = false;
+				if (key != null && key.isValid())
+					key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+		}
+	};
+
+	public NioPacketConnection(SocketChannel channel, SelectorLoop loop,
+			Executor dispatchExecutor, InputStreamProvider inProv,
+			OutputStreamProvider outProv) throws IOException {
+		super(channel.socket(), inProv, outProv);
+		if (inProv instanceof ConnectionInputStreamProvider
+				|| outProv instanceof ConnectionOutputStreamProvider)
+			throw new IllegalArgumentException(
+					"NIO connections only support per-packet stream providers");
+		this.channel = channel;
+		this.loop = loop;
+		this.dispatchExecutor = dispatchExecutor;
+		framed = true;
+		readBuffer = baseReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void setFramed(boolean framed) {
+		if (!framed)
+			throw new UnsupportedOperationException(
+					"NIO connections are always framed");
+	}
+
+	@Override
+	public PacketConnection start() {
+		if (!running) {
+			running = true;
+			startTime = System.nanoTime();
+			awaitingHandshake = supportedFeatures != 0;
+			if (awaitingHandshake)
+				handshakeDone = new CountDownLatch(1);
+			loop.register(this);
+			if (awaitingHandshake && handshakeTimeoutMillis > 0)
+				loop.schedule(handshakeTimeoutTask, handshakeTimeoutMillis,
+						TimeUnit.MILLISECONDS);
+		}
+		return this;
+	}
+
+	/**
+	 * Called on the loop's thread once the channel has been registered.
+	 * 
+	 * @param key
+	 *            the channel's selection key.
+	 */
+	protected void onRegistered(SelectionKey key) {
+		this.key = key;
+		if (!writeQueue.isEmpty())
+			enableWriteTask.run();
+	}
+
+	/**
+	 * Called on the loop's thread when the peer closes the connection or the
+	 * channel fails.
+	 */
+	protected void onChannelClosed() {
+		if (key != null)
+			key.cancel();
+		reassembler.clear();
+		handshakeDone.countDown();
+		disconnect = true;
+		wakeDispatcher();
+	}
+
+	/**
+	 * Called on the loop's thread when the channel is readable. Reads as much
+	 * as is available and queues every complete frame.
+	 */
+	protected void handleRead() {
+		int read;
+		try {
+			read = channel.read(readBuffer);
+		} catch (IOException e) {
+			if (metrics != null)
+				metrics.readError();
+			onChannelClosed();
+			return;
+		}
+		if (read < 0) {
+			onChannelClosed();
+			return;
+		}
+		if (metrics != null)
+			metrics.bytesRead(read);
+		readBuffer.flip();
+		try {
+			if (awaitingHandshake && !readHandshake()) {
+				compactReadBuffer();
+				return;
+			}
+			while (readFrame()) {
+			}
+		} catch (IOException e) {
+			if (metrics != null)
+				metrics.readError();
+			readBuffer.clear();
+			onChannelClosed();
+			return;
+		}
+		compactReadBuffer();
+	}
+
+	/**
+	 * Checks whether the client opened with a feature handshake and queues the
+	 * reply if it did. Writes are held back until this has been decided.
+	 * 
+	 * @return whether the handshake has been dealt with, false if more bytes
+	 *         are needed.
+	 * @throws IOException
+	 */
+	protected boolean readHandshake() throws IOException {
+		if (readBuffer.remaining() < 4)
+			return false;
+		int start = readBuffer.position();
+		if (readBuffer.getInt(start) == HANDSHAKE_MAGIC) {
+			readBuffer.position(start + 4);
+			int requested = PacketIO.readVarInt(readBuffer);
+			if (requested < 0) {
+				readBuffer.position(start);
+				return false;
+			}
+			CompactPacketIds table = null;
+			if ((requested & FEATURE_COMPACT_IDS) != 0) {
+				table = CompactPacketIds.readTable(readBuffer);
+				if (table == null) {
+					// the table can't take more than MAX_TABLE_SIZE
+					int needed = readBuffer.position() - start
+							+ CompactPacketIds.MAX_TABLE_SIZE;
+					readBuffer.position(start);
+					growReadBuffer(start, needed);
+					return false;
+				}
+			}
+			int accepted = requested & supportedFeatures;
+			byte[] codecs = new byte[0];
+			if ((accepted & FEATURE_COMPACT_IDS) != 0) {
+				codecs = table.getCodecBitmap();
+				packetIds = table;
+			}
+			handshakeReply = ByteBuffer.allocate(4
+					+ PacketIO.varIntSize(accepted) + codecs.length);
+			handshakeReply.putInt(HANDSHAKE_MAGIC);
+			PacketIO.writeVarInt(handshakeReply, accepted);
+			handshakeReply.put(codecs);
+			handshakeReply.flip();
+			applyFeatures(accepted);
+		}
+		awaitingHandshake = false;
+		handshakeDone.countDown();
+		if (handshakeReply != null || !writeQueue.isEmpty())
+			enableWriteTask.run();
+		return true;
+	}
+
+	/**
+	 * Copies the next frame in the read buffer into a pooled buffer and queues
+	 * it if it has been completely received.
+	 * 
+	 * @return whether a frame was read.
+	 * @throws IOException
+	 *             if the frame header is malformed.
+	 */
+	protected boolean readFrame() throws IOException {
+		int start = readBuffer.position();
+		int length = PacketIO.readVarInt(readBuffer);
+		if (length < 0)
+			return false;
+		checkFrameLength(length);
+		if (length == 0 && isChunking())
+			return readChunk(start);
+		if (readBuffer.remaining() < length) {
+			int needed = readBuffer.position() - start + length;
+			readBuffer.position(start);
+			growReadBuffer(start, needed);
+			return false;
+		}
+		ByteBuffer frame = bufferPool.acquire(length);
+		int limit = readBuffer.limit();
+		readBuffer.limit(readBuffer.position() + length);
+		frame.put(readBuffer);
+		readBuffer.limit(limit);
+		frame.flip();
+		queue(new QueuedPacket(frame));
+		return true;
+	}
+
+	/**
+	 * Hands the chunk in the read buffer to the reassembler if it has been
+	 * completely received, and queues the packet if that was its last chunk.
+	 * 
+	 * @param start
+	 *            the position of the chunk frame in the read buffer.
+	 * @return whether a chunk was read.
+	 * @throws IOException
+	 *             if the chunk header is malformed.
+	 */
+	protected boolean readChunk(int start) throws IOException {
+		int transferId = PacketIO.readVarInt(readBuffer);
+		int header = transferId < 0 ? -1 : PacketIO.readVarInt(readBuffer);
+		if (header < 0) {
+			readBuffer.position(start);
+			return false;
+		}
+		int length = checkFrameLength(header >>> 1);
+		if (readBuffer.remaining() < length) {
+			int needed = readBuffer.position() - start + length;
+			readBuffer.position(start);
+			growReadBuffer(start, needed);
+			return false;
+		}
+		boolean last = (header & 1) != 0;
+		ByteBuffer target = reassembler.startChunk(transferId, length, last);
+		if (target == null) {
+			readBuffer.position(readBuffer.position() + length);
+			if (last)
+				transferDropped();
+			return true;
+		}
+		int limit = readBuffer.limit();
+		readBuffer.limit(readBuffer.position() + length);
+		target.put(readBuffer);
+		readBuffer.limit(limit);
+		ByteBuffer frame = reassembler.endChunk(transferId, last);
+		if (frame != null)
+			queue(new QueuedPacket(frame));
+		return true;
+	}
+
+	/**
+	 * Makes room for more of the incomplete frame at the read buffer's
+	 * position once it fills the whole buffer. The buffer at most doubles, so
+	 * it only grows as fast as the frame's bytes arrive.
+	 * 
+	 * @param start
+	 *            the position of the frame.
+	 * @param needed
+	 *            the number of bytes the whole frame takes.
+	 */
+	private void growReadBuffer(int start, int needed) {
+		if (readBuffer.limit() - start < readBuffer.capacity())
+			return;
+		ByteBuffer bigger = bufferPool.acquire(Math.min(needed,
+				readBuffer.capacity() * 2));
+		bigger.clear();
+		bigger.put(readBuffer);
+		bigger.flip();
+		if (readBuffer != baseReadBuffer)
+			bufferPool.release(readBuffer);
+		readBuffer = bigger;
+	}
+
+	/**
+	 * Compacts the read buffer, swapping a grown one back for the
+	 * connection's own buffer once what is left of it fits in half of that.
+	 */
+	private void compactReadBuffer() {
+		readBuffer.compact();
+		if (readBuffer != baseReadBuffer
+				&& readBuffer.position() <= baseReadBuffer.capacity() / 2) {
+			readBuffer.flip();
+			baseReadBuffer.clear();
+			baseReadBuffer.put(readBuffer);
+			bufferPool.release(readBuffer);
+			readBuffer = baseReadBuffer;
+		}
+	}
+
+	/**
+	 * Called on the loop's thread when the channel is writable. Writes as many
+	 * queued buffers as the socket accepts.
+	 */
+	protected void handleWrite() {
+		if (awaitingHandshake) {
+			// readHandshake() turns writing back on once it's done
+			key.interestOps(SelectionKey.OP_READ);
+			return;
+		}
+		try {
+			if (handshakeReply != null) {
+				long handshakeBytes = channel.write(handshakeReply);
+				if (metrics != null)
+					metrics.bytesWritten(handshakeBytes);
+				if (handshakeReply.hasRemaining())
+					return;
+				handshakeReply = null;
+			}
+			long bytes = 0;
+			try {
+				while (true) {
+					OutgoingPacket next = null;
+					while (writing.size() < WRITE_BATCH_SIZE
+							&& (next == null || next.parent == null)
+							&& (next = pollWrite()) != null) {
+						writing.add(next);
+					}
+					int count = writing.size();
+					if (count == 0)
+						break;
+					int buffers = 0;
+					for (OutgoingPacket packet : writing) {
+						if (packet.header != null)
+							writeBatch[buffers++] = packet.header;
+						writeBatch[buffers++] = packet.data;
+					}
+					long wrote = channel.write(writeBatch, 0, buffers);
+					if (metrics != null)
+						metrics.bytesWritten(wrote);
+					Arrays.fill(writeBatch, 0, buffers, null);
+					int written = 0;
+					while (written < count && isWritten(writing.get(written))) {
+						OutgoingPacket packet = writing.get(written++);
+						bytes += packet.length;
+						completeWrite(packet);
+					}
+					writing.subList(0, written).clear();
+					if (!writing.isEmpty())
+						return;
+				}
+			} finally {
+				written(bytes);
+			}
+		} catch (IOException e) {
+			if (metrics != null)
+				metrics.writeError();
+			onChannelClosed();
+			return;
+		}
+		key.interestOps(readOps());
+		writeScheduled.set(false);
+		if (!writeQueue.isEmpty() && writeScheduled.compareAndSet(false, true))
+			enableWriteTask.run();
+	}
+
+	private static boolean isWritten(OutgoingPacket packet) {
+		return !packet.data.hasRemaining()
+				&& (packet.header == null || !packet.header.hasRemaining());
+	}
+
+	@Override
+	protected void queue(QueuedPacket packet) {
+		super.queue(packet);
+		scheduleDispatch();
+	}
+
+	/**
+	 * @return the read interest of the channel's key, none while reading is
+	 *         paused.
+	 */
+	protected int readOps() {
+		return readPaused ? 0 : SelectionKey.OP_READ;
+	}
+
+	/**
+	 * Pauses reading instead of blocking the loop's thread. The packet is
+	 * still queued, along with any others already read, and reading resumes
+	 * once the dispatcher has made room.
+	 */
+	@Override
+	protected void awaitInboundRoom(int bytes) {
+		if (!readPaused) {
+			readPaused = true;
+			if (key != null && key.isValid())
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+	}
+
+	@Override
+	protected void onInboundDrained() {
+		if (readPaused)
+			loop.execute(resumeReadTask);
+	}
+
+	@Override
+	protected void wakeDispatcher() {
+		scheduleDispatch();
+	}
+
+	protected void scheduleDispatch() {
+		if (dispatchScheduled.compareAndSet(false, true)) {
+			try {
+				dispatchExecutor.execute(dispatchTask);
+			} catch (RejectedExecutionException e) {
+				// the server is shutting down, finish up on this thread
+				dispatchTask.run();
+			}
+		}
+	}
+
+	/**
+	 * Dispatches one batch of queued packets on the dispatch executor, then
+	 * reschedules itself if more work arrived in the meantime.
+	 */
+	protected void dispatchQueued() {
+		ArrayList<QueuedPacket> batch = new ArrayList<QueuedPacket>();
+		packetQueue.drainTo(batch, DISPATCH_BATCH_SIZE);
+		dispatchBatch(batch);
+		if (running && disconnect && packetQueue.isEmpty())
+			shutdown();
+		dispatchScheduled.set(false);
+		if (running && (!packetQueue.isEmpty() || disconnect
+				|| flushRequested.get()))
+			scheduleDispatch();
+	}
+
+	@Override
+	protected void shutdown() {
+		running = false;
+		alertDisconnect();
+		flushCoalesced(false);
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (key != null && key.isValid())
+					handleWrite();
+				IOException closed = new IOException("Connection closed");
+				failWrites(writing, closed);
+				writing.clear();
+				failWrites(closed);
+				reassembler.clear();
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+			}
+		});
+	}
+
+	@Override
+	protected void onWriteQueued() {
+		if (writeScheduled.compareAndSet(false, true))
+			loop.execute(enableWriteTask);
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kneelawk.stree.packet.PacketConnection;
+import com.kneelawk.stree.packet.PacketServerConnection;
+import com.kneelawk.stree.packet.PacketThreads;
+import com.kneelawk.stree.packet.streamProviders.ConnectionInputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.ConnectionOutputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.InputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.OutputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.ThroughInputStreamProvider;
+import com.kneelawk.stree.packet.streamProviders.ThroughOutputStreamProvider;
+
+/**
+ * A PacketServerConnection that serves every client from a small, fixed pool
+ * of selector threads instead of two threads per client. Accepted connections
+ * are {@link NioPacketConnection}s, so clients must use framed packets, either
+ * by requesting {@link PacketConnection#FEATURE_FRAMING} or with
+ * {@link PacketConnection#setFramed(boolean)}. Listener registration works
+ * exactly as it does on PacketServerConnection.
+ * 
+ * @author kneelawk
+ *
+ */
+public class NioPacketServerConnection extends PacketServerConnection {
+	protected ServerSocketChannel channel;
+	protected Selector acceptSelector;
+	protected SelectorLoop[] loops;
+	protected int dispatchThreads;
+	protected ExecutorService dispatchExecutor;
+	protected int nextLoop = 0;
+
+	public NioPacketServerConnection(ServerSocketChannel channel)
+			throws IOException {
+		this(channel, Runtime.getRuntime().availableProcessors(), Runtime
+				.getRuntime().availableProcessors());
+	}
+
+	public NioPacketServerConnection(ServerSocketChannel channel,
+			int ioThreads, int dispatchThreads) throws IOException {
+		this(channel, ioThreads, dispatchThreads,
+				new ThroughInputStreamProvider(),
+				new ThroughOutputStreamProvider());
+	}
+
+	/**
+	 * @param channel
+	 *            the bound server channel to accept clients on.
+	 * @param ioThreads
+	 *            the number of selector threads reading and writing sockets.
+	 * @param dispatchThreads
+	 *            the number of threads running packet listeners.
+	 * @param inProv
+	 *            the provider to decode packets through.
+	 * @param outProv
+	 *            the provider to encode packets through.
+	 * @throws IOException
+	 */
+	public NioPacketServerConnection(ServerSocketChannel channel,
+			int ioThreads, int dispatchThreads, InputStreamProvider inProv,
+			OutputStreamProvider outProv) throws IOException {
+		super(channel.socket(), inProv, outProv);
+		if (inProv instanceof ConnectionInputStreamProvider
+				|| outProv instanceof ConnectionOutputStreamProvider)
+			throw new IllegalArgumentException(
+					"NIO connections only support per-packet stream providers");
+		if (ioThreads < 1 || dispatchThreads < 1)
+			throw new IllegalArgumentException(
+					"There must be at least one I/O and one dispatch thread");
+		this.channel = channel;
+		this.dispatchThreads = dispatchThreads;
+		framed = true;
+		supportedFeatures = PacketConnection.FEATURE_FRAMING;
+		loops = new SelectorLoop[ioThreads];
+	}
+
+	public ServerSocketChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void setFramed(boolean framed) {
+		if (!framed)
+			throw new UnsupportedOperationException(
+					"NIO connections are always framed");
+	}
+
+	@Override
+	public PacketServerConnection start() {
+		if (!running) {
+			running = true;
+			try {
+				for (int i = 0; i < loops.length; i++) {
+					loops[i] = new SelectorLoop();
+					PacketThreads.newThread(threadFactory, loops[i],
+							"PacketIO-" + i).start();
+				}
+				dispatchExecutor = Executors.newFixedThreadPool(
+						dispatchThreads, new ThreadFactory() {
+							private AtomicInteger count = new AtomicInteger();
+
+							@Override
+							public Thread newThread(Runnable r) {
+								return PacketThreads.newThread(threadFactory,
+										r, "PacketDispatcher-"
+												+ count.getAndIncrement());
+							}
+						});
+				channel.configureBlocking(false);
+				acceptSelector = Selector.open();
+				channel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to start NIO server", e);
+			}
+			Runnable acceptLoop = new Runnable() {
+				@Override
+				public void run() {
+					while (running) {
+						try {
+							acceptSelector.select();
+						} catch (IOException e) {
+							e.printStackTrace();
+							continue;
+						}
+						Iterator<SelectionKey> keys = acceptSelector
+								.selectedKeys().iterator();
+						while (keys.hasNext()) {
+							keys.next();
+							keys.remove();
+							acceptAll();
+						}
+					}
+					try {
+						acceptSelector.close();
+					} catch (IOException e) {
+					}
+				}
+			};
+			PacketThreads.newThread(threadFactory, acceptLoop,
+					"ConnectionListener").start();
+		}
+		return this;
+	}
+
+	protected void acceptAll() {
+		while (running) {
+			SocketChannel client;
+			try {
+				client = channel.accept();
+				if (client == null)
+					return;
+				client.configureBlocking(false);
+				client.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				if (running)
+					e.printStackTrace();
+				return;
+			}
+			NioPacketConnection conn = null;
+			try {
+				conn = new NioPacketConnection(client, nextLoop(),
+						dispatchExecutor, isProvider, osProvider);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (conn != null)
+				acceptConnection(conn);
+		}
+	}
+
+	protected SelectorLoop nextLoop() {
+		SelectorLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		return loop;
+	}
+
+	@Override
+	public void stop() throws IOException {
+		super.stop();
+		if (acceptSelector != null)
+			acceptSelector.wakeup();
+		if (dispatchExecutor != null)
+			dispatchExecutor.shutdown();
+		for (SelectorLoop loop : loops) {
+			if (loop != null)
+				loop.stop();
+		}
+	}
+}
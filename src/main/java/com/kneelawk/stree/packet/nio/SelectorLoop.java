@@ -0,0 +1,206 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single I/O thread multiplexing many {@link NioPacketConnection}s over one
+ * {@link Selector}. Work that touches the selector from other threads is
+ * queued with {@link #execute(Runnable)} and run on the loop's own thread.
+ * Tasks still queued when the loop stops are run before it exits, and tasks
+ * handed to a stopped loop are run straight away on the calling thread, so
+ * connections closing while the loop stops still close their channels.
+ * Timed tasks queued with {@link #schedule(Runnable, long, TimeUnit)} are
+ * dropped when the loop stops.
+ * 
+ * @author kneelawk
+ *
+ */
+public class SelectorLoop implements Runnable {
+	protected Selector selector;
+	protected ConcurrentLinkedQueue<Runnable> tasks;
+	protected PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+	protected volatile boolean running = true;
+	protected boolean closed = false;
+
+	public SelectorLoop() throws IOException {
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	/**
+	 * Runs task on this loop's thread as soon as possible.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 */
+	public void execute(Runnable task) {
+		synchronized (this) {
+			if (!closed) {
+				tasks.add(task);
+				selector.wakeup();
+				return;
+			}
+		}
+		task.run();
+	}
+
+	/**
+	 * Runs task on this loop's thread once delay has passed.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 * @param delay
+	 *            how long to wait before running it.
+	 * @param unit
+	 *            the unit of delay.
+	 */
+	public void schedule(Runnable task, long delay, TimeUnit unit) {
+		final Timer timer = new Timer(task, System.nanoTime()
+				+ unit.toNanos(delay));
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!closed)
+					timers.add(timer);
+			}
+		});
+	}
+
+	/**
+	 * Registers conn with this loop's selector for reading.
+	 * 
+	 * @param conn
+	 *            the connection to register.
+	 */
+	public void register(final NioPacketConnection conn) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					conn.onRegistered(conn.getChannel().register(selector,
+							SelectionKey.OP_READ, conn));
+				} catch (ClosedChannelException e) {
+					conn.onChannelClosed();
+				} catch (ClosedSelectorException e) {
+					conn.onChannelClosed();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select(runTimers());
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			runTasks();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				NioPacketConnection conn = (NioPacketConnection) key
+						.attachment();
+				if (key.isValid() && key.isReadable())
+					conn.handleRead();
+				if (key.isValid() && key.isWritable())
+					conn.handleWrite();
+			}
+		}
+		synchronized (this) {
+			closed = true;
+		}
+		runTasks();
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Runs the timed tasks that are due.
+	 * 
+	 * @return the milliseconds until the next timed task is due, or 0 if
+	 *         there are none.
+	 */
+	private long runTimers() {
+		Timer timer;
+		while ((timer = timers.peek()) != null) {
+			long remaining = timer.deadline - System.nanoTime();
+			if (remaining > 0)
+				return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+			timers.poll();
+			timer.task.run();
+		}
+		return 0;
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * A task waiting to be run at a given time.
+	 * 
+	 * @author kneelawk
+	 *
+	 */
+	protected static class Timer implements Comparable<Timer> {
+		public final Runnable task;
+		public final long deadline;
+
+		public Timer(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			long diff = deadline - other.deadline;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.streamProviders;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.kneelawk.stree.packet.PacketIO;
+
+/**
+ * Reads packets written by an {@link AdaptiveDeflateOutputStreamProvider}.
+ * Each call reads exactly one packet from the stream, inflating it if needed
+ * with an {@link Inflater} of its own that is ended once the packet is read.
+ * 
+ * @author kneelawk
+ *
+ */
+public class AdaptiveDeflateInputStreamProvider implements
+		InputStreamProvider {
+	protected AtomicLong packets = new AtomicLong();
+	protected AtomicLong compressedPackets = new AtomicLong();
+	protected AtomicLong decompressNanos = new AtomicLong();
+
+	@Override
+	public InputStream getInputStream(InputStream in) throws IOException {
+		int flag = in.read();
+		if (flag < 0)
+			throw new EOFException();
+		packets.incrementAndGet();
+		int length = PacketIO.checkFrameLength(PacketIO.readVarInt(in));
+		byte[] data = new byte[length];
+		if (flag == AdaptiveDeflateOutputStreamProvider.RAW) {
+			PacketIO.readFully(in, data, 0, length);
+		} else if (flag == AdaptiveDeflateOutputStreamProvider.DEFLATED) {
+			int compressedLength = PacketIO.checkFrameLength(PacketIO
+					.readVarInt(in));
+			byte[] compressed = new byte[compressedLength];
+			PacketIO.readFully(in, compressed, 0, compressedLength);
+			long start = System.nanoTime();
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(compressed);
+				int read = 0;
+				while (read < length && !inflater.finished()) {
+					int n = inflater.inflate(data, read, length - read);
+					if (n == 0 && (inflater.needsInput()
+							|| inflater.needsDictionary()))
+						break;
+					read += n;
+				}
+				if (read != length)
+					throw new IOException("Compressed packet is truncated");
+			} catch (DataFormatException e) {
+				throw new IOException("Invalid compressed packet", e);
+			} finally {
+				inflater.end();
+			}
+			decompressNanos.addAndGet(System.nanoTime() - start);
+			compressedPackets.incrementAndGet();
+		} else {
+			throw new IOException("Unknown compression flag: " + flag);
+		}
+		return new ByteArrayInputStream(data);
+	}
+
+	/**
+	 * @return the number of packets read.
+	 */
+	public long getPacketCount() {
+		return packets.get();
+	}
+
+	/**
+	 * @return the number of packets that arrived compressed.
+	 */
+	public long getCompressedPacketCount() {
+		return compressedPackets.get();
+	}
+
+	/**
+	 * @return the total time spent decompressing, in nanoseconds.
+	 */
+	public long getDecompressNanos() {
+		return decompressNanos.get();
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.streamProviders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import com.kneelawk.stree.packet.PacketIO;
+
+/**
+ * Buffers each packet and only deflates it when it is at least a threshold
+ * size and compressing actually makes it smaller. Each packet starts with a
+ * flag byte telling {@link AdaptiveDeflateInputStreamProvider} whether it is
+ * compressed:
+ * <ul>
+ * <li>{@link #RAW}, the length as a varint, then the packet.</li>
+ * <li>{@link #DEFLATED}, the uncompressed and compressed lengths as varints,
+ * then the deflated packet.</li>
+ * </ul>
+ * Counters of bytes saved and time spent compressing are kept for every
+ * packet written through this provider.
+ * 
+ * @author kneelawk
+ *
+ */
+public class AdaptiveDeflateOutputStreamProvider implements
+		OutputStreamProvider {
+	public static final int RAW = 0;
+	public static final int DEFLATED = 1;
+
+	public static final int DEFAULT_THRESHOLD = 256;
+
+	protected int threshold;
+	protected int level;
+
+	protected AtomicLong packets = new AtomicLong();
+	protected AtomicLong compressedPackets = new AtomicLong();
+	protected AtomicLong bytesIn = new AtomicLong();
+	protected AtomicLong bytesOut = new AtomicLong();
+	protected AtomicLong compressNanos = new AtomicLong();
+
+	public AdaptiveDeflateOutputStreamProvider() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold
+	 *            the smallest encoded packet, in bytes, that is compressed.
+	 */
+	public AdaptiveDeflateOutputStreamProvider(int threshold) {
+		this(threshold, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param threshold
+	 *            the smallest encoded packet, in bytes, that is compressed.
+	 * @param level
+	 *            the compression level, 0-9 or Deflater.DEFAULT_COMPRESSION.
+	 */
+	public AdaptiveDeflateOutputStreamProvider(int threshold, int level) {
+		this.threshold = threshold;
+		this.level = level;
+	}
+
+	@Override
+	public OutputStream getOutputStream(final OutputStream out)
+			throws IOException {
+		return new ByteArrayOutputStream() {
+			private boolean closed = false;
+
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					writePacket(out, buf, count);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes one packet when its stream is closed. A packet large enough to
+	 * compress gets its own {@link Deflater}, which is ended before this
+	 * returns.
+	 */
+	protected void writePacket(OutputStream out, byte[] data, int length)
+			throws IOException {
+		packets.incrementAndGet();
+		bytesIn.addAndGet(length);
+		if (length >= threshold) {
+			long start = System.nanoTime();
+			byte[] compressed = new byte[length];
+			Deflater deflater = new Deflater(level);
+			int compressedLength = 0;
+			boolean finished;
+			try {
+				deflater.setInput(data, 0, length);
+				deflater.finish();
+				while (!deflater.finished() && compressedLength < length) {
+					compressedLength += deflater.deflate(compressed,
+							compressedLength, length - compressedLength);
+				}
+				finished = deflater.finished();
+			} finally {
+				deflater.end();
+			}
+			compressNanos.addAndGet(System.nanoTime() - start);
+			if (finished && compressedLength < length) {
+				compressedPackets.incrementAndGet();
+				out.write(DEFLATED);
+				PacketIO.writeVarInt(out, length);
+				PacketIO.writeVarInt(out, compressedLength);
+				out.write(compressed, 0, compressedLength);
+				bytesOut.addAndGet(1 + PacketIO.varIntSize(length)
+						+ PacketIO.varIntSize(compressedLength)
+						+ compressedLength);
+				out.flush();
+				return;
+			}
+		}
+		out.write(RAW);
+		PacketIO.writeVarInt(out, length);
+		out.write(data, 0, length);
+		bytesOut.addAndGet(1 + PacketIO.varIntSize(length) + length);
+		out.flush();
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return the number of packets written.
+	 */
+	public long getPacketCount() {
+		return packets.get();
+	}
+
+	/**
+	 * @return the number of packets that were sent compressed.
+	 */
+	public long getCompressedPacketCount() {
+		return compressedPackets.get();
+	}
+
+	/**
+	 * @return the total size of the packets before compression.
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return the total number of bytes written, including headers.
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * @return how many bytes compression saved, net of headers. Negative if
+	 *         the headers cost more than compression saved.
+	 */
+	public long getBytesSaved() {
+		return bytesIn.get() - bytesOut.get();
+	}
+
+	/**
+	 * @return the total time spent compressing, in nanoseconds, including
+	 *         attempts that didn't make the packet smaller.
+	 */
+	public long getCompressNanos() {
+		return compressNanos.get();
+	}
+}
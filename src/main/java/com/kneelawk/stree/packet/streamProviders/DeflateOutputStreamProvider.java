@@ -0,0 +1,74 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet.streamProviders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses a whole connection with a single deflate stream. Every packet is
+ * compressed against the ones sent before it, and each flush is a sync flush,
+ * so the peer can decode everything sent so far without the stream ending.
+ * Pair with {@link DeflateInputStreamProvider}.
+ * 
+ * @author kneelawk
+ *
+ */
+public class DeflateOutputStreamProvider implements
+		ConnectionOutputStreamProvider {
+	public static final int BUFFER_SIZE = 8192;
+
+	protected int level;
+
+	public DeflateOutputStreamProvider() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param level
+	 *            the compression level, 0-9 or Deflater.DEFAULT_COMPRESSION.
+	 */
+	public DeflateOutputStreamProvider(int level) {
+		this.level = level;
+	}
+
+	@Override
+	public OutputStream getOutputStream(OutputStream out) throws IOException {
+		final Deflater deflater = new Deflater(level);
+		return new DeflaterOutputStream(out, deflater, BUFFER_SIZE, true) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+}
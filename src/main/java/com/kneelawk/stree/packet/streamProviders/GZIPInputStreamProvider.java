@@ -28,6 +28,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
 
+/**
+ * Decompresses every packet as a separate gzip member, as written by
+ * {@link GZIPOutputStreamProvider}. For connections with many small packets,
+ * {@link DeflateInputStreamProvider} is the cheaper counterpart.
+ * 
+ * @author kneelawk
+ *
+ */
 public class GZIPInputStreamProvider implements InputStreamProvider {
 
 	@Override
@@ -28,6 +28,14 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.zip.GZIPOutputStream;
 
+/**
+ * Compresses every packet as a separate gzip member. For connections with many
+ * small packets, {@link DeflateOutputStreamProvider} compresses better and is
+ * cheaper.
+ * 
+ * @author kneelawk
+ *
+ */
 public class GZIPOutputStreamProvider implements OutputStreamProvider {
 
 	@Override
@@ -27,6 +27,10 @@ package com.kneelawk.stree.packet.streamProviders;
 import java.io.InputStream;
 
 public class ThroughInputStreamProvider implements InputStreamProvider {
+	/**
+	 * A shared instance, as this provider has no state.
+	 */
+	public static final ThroughInputStreamProvider INSTANCE = new ThroughInputStreamProvider();
 
 	@Override
 	public InputStream getInputStream(InputStream in) {
@@ -27,6 +27,10 @@ package com.kneelawk.stree.packet.streamProviders;
 import java.io.OutputStream;
 
 public class ThroughOutputStreamProvider implements OutputStreamProvider {
+	/**
+	 * A shared instance, as this provider has no state.
+	 */
+	public static final ThroughOutputStreamProvider INSTANCE = new ThroughOutputStreamProvider();
 
 	@Override
 	public OutputStream getOutputStream(OutputStream out) {
@@ -0,0 +1,129 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.kneelawk.stree.core.StringSTreeNode;
+import com.kneelawk.stree.packet.listener.PacketListener;
+
+/**
+ * Tests that coalesced packets reach the peer's listeners one at a time and
+ * in the order they were sent.
+ * 
+ * @author kneelawk
+ *
+ */
+public class CoalescingTest extends TestCase {
+	private static final int PACKETS = 20000;
+
+	private ServerSocket serverSocket;
+	private PacketConnection sender;
+	private PacketConnection receiver;
+	private CountDownLatch received = new CountDownLatch(PACKETS);
+	private AtomicInteger next = new AtomicInteger();
+	private AtomicInteger outOfOrder = new AtomicInteger();
+	private AtomicInteger bundles = new AtomicInteger();
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (sender != null)
+			sender.stop();
+		if (receiver != null)
+			receiver.stop();
+		if (serverSocket != null)
+			serverSocket.close();
+	}
+
+	private void connect(int supportedFeatures) throws IOException {
+		serverSocket = new ServerSocket(0, 50,
+				InetAddress.getByName("127.0.0.1"));
+		Socket client = new Socket(serverSocket.getInetAddress(),
+				serverSocket.getLocalPort());
+		receiver = new PacketConnection(serverSocket.accept());
+		receiver.setSupportedFeatures(supportedFeatures);
+		receiver.addPacketListener(new PacketListener() {
+			@Override
+			public void onReceivePacket(String name, Packet packet) {
+				if (packet instanceof BundlePacket) {
+					bundles.incrementAndGet();
+					return;
+				}
+				StringSTreeNode data = (StringSTreeNode) ((SimplePacket) packet)
+						.getData();
+				int value = Integer.parseInt(data.getValue());
+				if (value != next.getAndIncrement())
+					outOfOrder.incrementAndGet();
+				received.countDown();
+			}
+		});
+		sender = new PacketConnection(client);
+		sender.setRequestedFeatures(PacketConnection.FEATURE_FRAMING
+				| PacketConnection.FEATURE_COALESCING);
+		sender.setCoalescing(64, 2, TimeUnit.MILLISECONDS);
+		sender.setMetricsEnabled(true);
+		receiver.start();
+		sender.start();
+	}
+
+	private long sendAll() throws Exception {
+		SendFuture last = null;
+		for (int i = 0; i < PACKETS; i++) {
+			last = sender.sendPacketAsync(new SimplePacket(new StringSTreeNode(
+					Integer.toString(i)), "seq"));
+		}
+		last.get(10, TimeUnit.SECONDS);
+		assertTrue("Timed out receiving",
+				received.await(10, TimeUnit.SECONDS));
+		assertEquals(PACKETS, next.get());
+		assertEquals("out of order", 0, outOfOrder.get());
+		assertEquals("bundles seen by listeners", 0, bundles.get());
+		return sender.getMetricsSnapshot().getPacketsOut();
+	}
+
+	public void testCoalescedPacketsArriveInOrder() throws Exception {
+		connect(PacketConnection.FEATURE_FRAMING
+				| PacketConnection.FEATURE_COALESCING);
+		long frames = sendAll();
+		assertTrue(sender.isCoalescing());
+		assertTrue("sent " + frames + " frames for " + PACKETS + " packets",
+				frames < PACKETS);
+	}
+
+	public void testNoCoalescingWithoutFeature() throws Exception {
+		connect(PacketConnection.FEATURE_FRAMING);
+		long frames = sendAll();
+		assertFalse(sender.isCoalescing());
+		assertEquals(PACKETS, frames);
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import com.kneelawk.stree.core.MapSTreeNode;
+import com.kneelawk.stree.core.StringSTreeNode;
+import com.kneelawk.stree.packet.listener.PacketListener;
+
+/**
+ * Tests the compact bundle encoding of {@link CompactPacketIds}.
+ * 
+ * @author kneelawk
+ *
+ */
+public class CompactPacketIdsTest extends TestCase {
+	private CompactPacketIds compact;
+	private CompactPacketIds plain;
+
+	@Override
+	protected void setUp() throws Exception {
+		compact = CompactPacketIds.fromRegisteredProviders();
+		compact.setPeerCodecBitmap(compact.getCodecBitmap());
+		// a peer without codecs gets every packet as a tree
+		plain = CompactPacketIds.fromRegisteredProviders();
+	}
+
+	private static BundlePacket bundle(int children) {
+		ArrayList<Packet> packets = new ArrayList<Packet>();
+		for (int i = 0; i < children; i++) {
+			if (i % 2 == 0) {
+				MapSTreeNode data = new MapSTreeNode();
+				data.put("k", new StringSTreeNode("v" + i));
+				packets.add(new AdvancedPacket(data, "advanced"));
+			} else {
+				packets.add(new SimplePacket(new StringSTreeNode("s" + i),
+						"simple"));
+			}
+		}
+		return new BundlePacket(packets, "bundle");
+	}
+
+	private static byte[] write(CompactPacketIds ids, Packet packet)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ids.writePacket(out, packet);
+		return out.toByteArray();
+	}
+
+	private static void assertChild(int i, Packet child) {
+		if (i % 2 == 0) {
+			assertEquals("advanced", child.name);
+			assertEquals("v" + i, ((AdvancedPacket) child).getData()
+					.getString("k").getValue());
+		} else {
+			assertEquals("simple", child.name);
+			assertEquals("s" + i, ((StringSTreeNode) ((SimplePacket) child)
+					.getData()).getValue());
+		}
+	}
+
+	public void testBundleRoundTrip() throws IOException {
+		byte[] data = write(compact, bundle(10));
+		assertEquals("codec bit", 1, data[0] & 1);
+		BundlePacket read = (BundlePacket) compact
+				.readPacket(new ByteArrayInputStream(data));
+		assertEquals("bundle", read.name);
+		assertEquals(10, read.getPackets().size());
+		for (int i = 0; i < 10; i++) {
+			assertChild(i, read.getPackets().get(i));
+		}
+	}
+
+	public void testBundleSmallerThanTree() throws IOException {
+		BundlePacket bundle = bundle(10);
+		byte[] tree = write(plain, bundle);
+		byte[] flat = write(compact, bundle);
+		assertEquals("tree bit", 0, tree[0] & 1);
+		assertTrue("compact " + flat.length + " >= tree " + tree.length,
+				flat.length < tree.length);
+	}
+
+	public void testUnbundlerGetsChildrenInOrder() throws IOException {
+		final ArrayList<Packet> children = new ArrayList<Packet>();
+		Packet read = compact.readPacket(new ByteArrayInputStream(write(
+				compact, bundle(10))), new PacketListener() {
+			@Override
+			public void onReceivePacket(String name, Packet packet) {
+				children.add(packet);
+			}
+		});
+		assertNull(read);
+		assertEquals(10, children.size());
+		for (int i = 0; i < 10; i++) {
+			assertChild(i, children.get(i));
+		}
+	}
+
+	public void testNestingLimit() throws IOException {
+		Packet packet = bundle(2);
+		for (int i = 1; i < CompactPacketIds.MAX_BUNDLE_DEPTH; i++) {
+			ArrayList<Packet> packets = new ArrayList<Packet>();
+			packets.add(packet);
+			packet = new BundlePacket(packets, "outer");
+		}
+		byte[] deepest = write(compact, packet);
+		assertNotNull(compact.readPacket(new ByteArrayInputStream(deepest)));
+
+		ArrayList<Packet> packets = new ArrayList<Packet>();
+		packets.add(packet);
+		byte[] tooDeep = write(compact, new BundlePacket(packets, "outer"));
+		try {
+			compact.readPacket(new ByteArrayInputStream(tooDeep));
+			fail("Read bundles nested too deeply");
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Kneelawk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.kneelawk.stree.packet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.kneelawk.stree.core.StringSTreeNode;
+import com.kneelawk.stree.packet.listener.PacketListener;
+
+/**
+ * Tests that listener lanes keep each name's packets in order and that a slow
+ * listener only holds up the name it is slow on.
+ * 
+ * @author kneelawk
+ *
+ */
+public class ListenerLaneTest extends TestCase {
+	private ExecutorService executor;
+	private ServerSocket serverSocket;
+	private PacketConnection sender;
+	private PacketConnection receiver;
+
+	@Override
+	protected void setUp() throws Exception {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (sender != null)
+			sender.stop();
+		if (receiver != null)
+			receiver.stop();
+		if (serverSocket != null)
+			serverSocket.close();
+		executor.shutdownNow();
+	}
+
+	private void connect(PacketListener listener) throws IOException {
+		serverSocket = new ServerSocket(0, 50,
+				InetAddress.getByName("127.0.0.1"));
+		Socket client = new Socket(serverSocket.getInetAddress(),
+				serverSocket.getLocalPort());
+		receiver = new PacketConnection(serverSocket.accept());
+		receiver.setListenerExecutor(executor);
+		receiver.addPacketListener(listener);
+		sender = new PacketConnection(client);
+		receiver.start();
+		sender.start();
+	}
+
+	private static int valueOf(Packet packet) {
+		StringSTreeNode data = (StringSTreeNode) ((SimplePacket) packet)
+				.getData();
+		return Integer.parseInt(data.getValue());
+	}
+
+	private void send(String name, int value) throws IOException {
+		sender.sendPacket(new SimplePacket(new StringSTreeNode(Integer
+				.toString(value)), name));
+	}
+
+	private void awaitLanesRetired(PacketListener listener)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!receiver.lanes.isEmpty()
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(0, receiver.getListenerQueueDepth(listener));
+		assertTrue("lanes left behind", receiver.lanes.isEmpty());
+	}
+
+	public void testEachNameInOrder() throws Exception {
+		final int names = 8;
+		final int perName = 500;
+		final ConcurrentHashMap<String, AtomicInteger> next = new ConcurrentHashMap<String, AtomicInteger>();
+		final ConcurrentHashMap<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+		final AtomicInteger outOfOrder = new AtomicInteger();
+		final AtomicInteger overlapping = new AtomicInteger();
+		final CountDownLatch received = new CountDownLatch(names * perName);
+		for (int i = 0; i < names; i++) {
+			next.put("name" + i, new AtomicInteger());
+			running.put("name" + i, new AtomicInteger());
+		}
+		PacketListener listener = new PacketListener() {
+			@Override
+			public void onReceivePacket(String name, Packet packet) {
+				if (running.get(name).incrementAndGet() != 1)
+					overlapping.incrementAndGet();
+				if (valueOf(packet) != next.get(name).getAndIncrement())
+					outOfOrder.incrementAndGet();
+				running.get(name).decrementAndGet();
+				received.countDown();
+			}
+		};
+		connect(listener);
+
+		for (int value = 0; value < perName; value++) {
+			for (int i = 0; i < names; i++) {
+				send("name" + i, value);
+			}
+		}
+
+		assertTrue("Timed out receiving",
+				received.await(10, TimeUnit.SECONDS));
+		assertEquals("out of order", 0, outOfOrder.get());
+		assertEquals("same name run concurrently", 0, overlapping.get());
+		awaitLanesRetired(listener);
+	}
+
+	public void testSlowNameOnlyHoldsUpItself() throws Exception {
+		final int slowPackets = 20;
+		final int fastPackets = 200;
+		final AtomicInteger slowDone = new AtomicInteger();
+		final AtomicInteger slowDoneWhenFastFinished = new AtomicInteger(-1);
+		final AtomicInteger fastDone = new AtomicInteger();
+		final CountDownLatch received = new CountDownLatch(slowPackets
+				+ fastPackets);
+		PacketListener listener = new PacketListener() {
+			@Override
+			public void onReceivePacket(String name, Packet packet) {
+				if ("slow".equals(name)) {
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					slowDone.incrementAndGet();
+				} else if (fastDone.incrementAndGet() == fastPackets) {
+					slowDoneWhenFastFinished.set(slowDone.get());
+				}
+				received.countDown();
+			}
+		};
+		connect(listener);
+
+		for (int i = 0; i < slowPackets; i++) {
+			send("slow", i);
+		}
+		for (int i = 0; i < fastPackets; i++) {
+			send("fast", i);
+		}
+
+		assertTrue("Timed out receiving",
+				received.await(10, TimeUnit.SECONDS));
+		assertTrue("fast packets waited for " + slowDoneWhenFastFinished.get()
+				+ " slow ones", slowDoneWhenFastFinished.get() < slowPackets);
+		awaitLanesRetired(listener);
+	}
+}